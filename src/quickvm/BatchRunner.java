@@ -0,0 +1,115 @@
+package quickvm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs classes on a pool of threads, each with its own VM (heap, static
+ * fields, stack, native handlers). Only the class path is shared, with
+ * the decoded (and compiled) methods in it. The output of every class
+ * is encoded on its thread, buffered and written in input order, as a
+ * single VM would.
+ */
+public class BatchRunner {
+
+    /** Buffered output of a class. */
+    static class Result {
+        byte[] out, err;
+        boolean ok;
+    }
+
+    private final QuickVM settings;
+
+    private final ExecutorService pool;
+
+    private final List<QuickVM> workers = new ArrayList<>();
+
+    private final ThreadLocal<QuickVM> worker = new ThreadLocal<QuickVM>() {
+        @Override
+        protected QuickVM initialValue() {
+            QuickVM vm = settings.newWorker();
+            synchronized (workers) {
+                workers.add(vm);
+            }
+            return vm;
+        }
+    };
+
+    /** Submitted classes whose output hasn't been written yet, in order. */
+    private final Deque<Future<Result>> pending = new ArrayDeque<>();
+
+    private int failed;
+
+    /**
+     * @param settings VM whose class path and settings workers use
+     * @param jobs number of threads
+     */
+    public BatchRunner(QuickVM settings, int jobs) {
+        this.settings = settings;
+        this.pool = Executors.newFixedThreadPool(jobs);
+    }
+
+    public void submit(final String file) {
+        pending.add(pool.submit(new Callable<Result>() {
+            @Override
+            public Result call() {
+                return runClass(worker.get(), settings.sink.format, file);
+            }
+        }));
+        // Write whatever is ready, so output doesn't pile up
+        while (!pending.isEmpty() && pending.peek().isDone()) write(pending.poll());
+    }
+
+    /**
+     * Wait for all submitted classes and write their output.
+     * Returns the number of classes that failed.
+     */
+    public int finish() {
+        while (!pending.isEmpty()) write(pending.poll());
+        pool.shutdown();
+        return failed;
+    }
+
+    /** Counters of all workers, added up. */
+    public QuickVM.Stats stats() {
+        QuickVM.Stats stats = new QuickVM.Stats();
+        synchronized (workers) {
+            for (QuickVM vm : workers) stats.add(vm.stats);
+        }
+        return stats;
+    }
+
+    private static Result runClass(QuickVM vm, ResultSink.Format format, String file) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(), err = new ByteArrayOutputStream();
+        vm.sink = new ResultSink.Stream(format, out);
+        vm.err = new PrintStream(err);
+        Result result = new Result();
+        result.ok = vm.runClass(file);
+        vm.err.flush();
+        result.out = out.toByteArray();
+        result.err = err.toByteArray();
+        return result;
+    }
+
+    private void write(Future<Result> future) {
+        Result result;
+        try {
+            result = future.get();
+        } catch (InterruptedException | ExecutionException ex) {
+            throw new IllegalStateException(ex);
+        }
+        settings.err.write(result.err, 0, result.err.length);
+        settings.sink.addEncoded(result.out);
+        if (!result.ok) failed++;
+    }
+
+}
@@ -0,0 +1,671 @@
+package quickvm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import quickvm.QuickVM.Frame;
+import quickvm.QuickVM.MethodHandler;
+import quickvm.util.ClassWriter;
+import quickvm.util.ClassWriter.Code;
+import quickvm.util.ClassWriter.Label;
+import static quickvm.util.ClassWriter.Code.*;
+
+/**
+ * Third execution tier: translates a decoded method into a JVM class,
+ * so HotSpot compiles the smali loops themselves instead of a dispatcher.
+ *
+ * Registers live in JVM locals while compiled code runs. Instructions
+ * that can't be translated are left to the interpreter: the compiled code
+ * writes the registers back to the frame and returns the pc of the
+ * instruction, and is re-entered at the pc that follows it. Calls to
+ * native methods are bound when compiling, so they don't go through
+ * {@link QuickVM#methods}. If an instruction throws, the registers and
+ * pc are written back before the exception leaves compiled code, as the
+ * interpreter would have them.
+ */
+public class BytecodeCompiler {
+
+    /**
+     * Superclass of generated classes. Generated classes live in their
+     * own class loader, so they can only reach public members; helpers
+     * for VM state are provided here.
+     */
+    public static abstract class Compiled {
+        /**
+         * Run the method from the given pc, which should be 0, a branch
+         * target or the pc after an instruction the method left to the
+         * interpreter. Returns the pc of the next instruction to interpret,
+         * with the registers written back, or a negative value if the method
+         * returned (the frame has already been popped).
+         */
+        public abstract int run(QuickVM vm, int[] r, int pc) throws IOException;
+
+        public static int result(QuickVM vm) {
+            return vm.returnValue;
+        }
+
+        public static void setResult(QuickVM vm, int value) {
+            vm.returnValue = value;
+        }
+
+        public static int agetInt(QuickVM vm, int array, int index) {
+            return ((VMObject.IntArrayObject) vm.heap.get(array)).value[index];
+        }
+
+        public static int agetObject(QuickVM vm, int array, int index) {
+            return ((VMObject.RefArrayObject) vm.heap.get(array)).value[index];
+        }
+
+        public static int agetByte(QuickVM vm, int array, int index) {
+            return ((VMObject.ByteArrayObject) vm.heap.get(array)).value[index];
+        }
+
+        public static int agetChar(QuickVM vm, int array, int index) {
+            return ((VMObject.CharArrayObject) vm.heap.get(array)).value[index];
+        }
+
+        public static int agetShort(QuickVM vm, int array, int index) {
+            return ((VMObject.ShortArrayObject) vm.heap.get(array)).value[index];
+        }
+
+        public static void aputInt(QuickVM vm, int array, int index, int value) {
+            ((VMObject.IntArrayObject) vm.heap.get(array)).value[index] = value;
+        }
+
+        public static void aputObject(QuickVM vm, int array, int index, int value) {
+            ((VMObject.RefArrayObject) vm.heap.get(array)).value[index] = value;
+        }
+
+        public static void aputByte(QuickVM vm, int array, int index, int value) {
+            ((VMObject.ByteArrayObject) vm.heap.get(array)).value[index] = (byte) value;
+        }
+
+        public static void aputChar(QuickVM vm, int array, int index, int value) {
+            ((VMObject.CharArrayObject) vm.heap.get(array)).value[index] = (char) value;
+        }
+
+        public static void aputShort(QuickVM vm, int array, int index, int value) {
+            ((VMObject.ShortArrayObject) vm.heap.get(array)).value[index] = (short) value;
+        }
+
+        public static int length(QuickVM vm, int array) {
+            return ((VMObject.ArrayObject) vm.heap.get(array)).length();
+        }
+
+        public static int constString(QuickVM vm, Object value) {
+            return vm.intern((String) value);
+        }
+
+        public static int sget(QuickVM vm, Object field) {
+            return vm.getStatic((FieldRef) field);
+        }
+
+        public static void sput(QuickVM vm, Object field, int value) {
+            Ops.sput(vm, (FieldRef) field, value);
+        }
+
+        /**
+         * Called when the instruction at the given pc threw, with the
+         * registers written back, to point the frame at it.
+         */
+        public static void fail(QuickVM vm, int pc) {
+            Frame f = vm.stack.peek();
+            f.pc = pc + 1;
+            vm.lastCommand = f.method.code[pc];
+        }
+
+        /**
+         * Called before backward branches, charging the loop body to the
+         * budget. Returns true if the VM needs a safepoint: the branch is
+         * then left to the interpreter, with the registers in the frame.
+         */
+        public static boolean backEdge(QuickVM vm, int instructions) {
+            return (vm.budget -= instructions) < 0 || vm.cancelled;
+        }
+    }
+
+    private static class Loader extends ClassLoader {
+        Loader() {
+            super(BytecodeCompiler.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    private static final String COMPILED = "quickvm/BytecodeCompiler$Compiled";
+    private static final String VM = "quickvm/QuickVM";
+    private static final String HANDLER = "quickvm/QuickVM$MethodHandler";
+
+    /** Local variable slots of the generated run method. */
+    private static final int VM_ARG = 1, REGS_ARG = 2, PC_ARG = 3, FIRST_REG = 4;
+
+    private static final AtomicInteger counter = new AtomicInteger();
+
+    /**
+     * Objects generated code refers to: native handlers, and strings and
+     * field references of instructions. They're passed to the generated
+     * class through static fields.
+     */
+    private static class Constants {
+        final List<MethodHandler> natives = new ArrayList<>();
+        final List<Object> refs = new ArrayList<>();
+        private final Map<Object, Integer> index = new HashMap<>();
+
+        int nativeIndex(MethodHandler handler) {
+            Integer i = index.get(handler);
+            if (i == null) {
+                i = natives.size();
+                natives.add(handler);
+                index.put(handler, i);
+            }
+            return i;
+        }
+
+        int refIndex(Object ref) {
+            Integer i = index.get(ref);
+            if (i == null) {
+                i = refs.size();
+                refs.add(ref);
+                index.put(ref, i);
+            }
+            return i;
+        }
+    }
+
+    /**
+     * Compile a method. Returns null if it can't be compiled (i.e. it's
+     * too big for a JVM method, or the generated class doesn't verify).
+     */
+    public static Compiled compile(QuickVM vm, Method method) {
+        String name = "quickvm/gen/M" + counter.incrementAndGet();
+        ClassWriter cw = new ClassWriter(name, COMPILED);
+        Constants constants = new Constants();
+        try {
+            cw.addField(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_STATIC, "natives", "[L" + HANDLER + ";");
+            cw.addField(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_STATIC, "refs", "[Ljava/lang/Object;");
+            Code init = new Code(1, 1);
+            init.local(ALOAD, 0).op(INVOKESPECIAL).u2(cw.methodRef(COMPILED, "<init>", "()V")).op(RETURN);
+            cw.addMethod(ClassWriter.ACC_PUBLIC, "<init>", "()V", init);
+            cw.addMethod(ClassWriter.ACC_PUBLIC, "run", "(L" + VM + ";[II)I", translate(vm, cw, method, constants));
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+
+        try {
+            Class<?> cls = new Loader().define(name.replace('/', '.'), cw.toByteArray());
+            cls.getField("natives").set(null, constants.natives.toArray(new MethodHandler[constants.natives.size()]));
+            cls.getField("refs").set(null, constants.refs.toArray());
+            return (Compiled) cls.getConstructor().newInstance();
+        } catch (LinkageError ex) {
+            // The JVM rejected the generated class (i.e. VerifyError): leave the method to the other tiers
+            return null;
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Run the frame on top of the stack until it invokes a method
+     * or returns.
+     */
+    public static void run(QuickVM vm, Frame f) throws IOException {
+        Compiled compiled = f.method.compiled;
+        Instruction[] code = f.method.code;
+        while (true) {
+            f.pc = compiled.run(vm, f.locals, f.pc);
+            if (f.pc < 0) return;
+            if (f.pc >= code.length)
+                throw new IllegalArgumentException("Unexpected end of method");
+            if (--vm.budget < 0 || vm.cancelled) vm.safepoint();
+            Instruction insn = code[f.pc++];
+            vm.lastCommand = insn;
+            vm.stats.exits++;
+            Ops.execute(vm, f, insn);
+            if (vm.stack.peek() != f) return;
+        }
+    }
+
+    private static boolean isSupported(QuickVM vm, Instruction insn) {
+        switch (insn.opcode) {
+            case NOP:
+            case CONST_4:
+            case CONST_16:
+            case CONST:
+            case CONST_HIGH16:
+            case MOVE:
+            case MOVE_FROM16:
+            case MOVE_16:
+            case MOVE_OBJECT:
+            case MOVE_OBJECT_FROM16:
+            case MOVE_OBJECT_16:
+            case MOVE_RESULT:
+            case MOVE_RESULT_OBJECT:
+            case RETURN_VOID:
+            case RETURN_OBJECT:
+            case GOTO:
+            case GOTO_16:
+            case GOTO_32:
+            case IF_GT:
+            case IF_GE:
+            case SPARSE_SWITCH:
+            case AGET:
+            case AGET_OBJECT:
+            case AGET_BOOLEAN:
+            case AGET_BYTE:
+            case AGET_CHAR:
+            case AGET_SHORT:
+            case APUT:
+            case APUT_OBJECT:
+            case APUT_BOOLEAN:
+            case APUT_BYTE:
+            case APUT_CHAR:
+            case APUT_SHORT:
+            case ARRAY_LENGTH:
+            case ADD_INT:
+            case ADD_INT_2ADDR:
+            case ADD_INT_LIT16:
+            case ADD_INT_LIT8:
+            case REM_INT:
+            case REM_INT_2ADDR:
+            case REM_INT_LIT16:
+            case REM_INT_LIT8:
+            case XOR_INT:
+            case XOR_INT_2ADDR:
+            case XOR_INT_LIT16:
+            case XOR_INT_LIT8:
+            case INT_TO_CHAR:
+            case CONST_STRING:
+            case CONST_STRING_JUMBO:
+            case SGET:
+            case SGET_OBJECT:
+            case SGET_BOOLEAN:
+            case SGET_BYTE:
+            case SGET_CHAR:
+            case SGET_SHORT:
+            case SPUT:
+            case SPUT_OBJECT:
+            case SPUT_BOOLEAN:
+            case SPUT_BYTE:
+            case SPUT_CHAR:
+            case SPUT_SHORT:
+                return true;
+
+            case PACKED_SWITCH:
+                // Key range has to fit a tableswitch
+                return insn.targets.length > 0 && insn.literal + insn.targets.length - 1 <= Integer.MAX_VALUE;
+
+            case INVOKE_DIRECT:
+            case INVOKE_STATIC:
+            case INVOKE_VIRTUAL:
+            case INVOKE_DIRECT_RANGE:
+            case INVOKE_STATIC_RANGE:
+            case INVOKE_VIRTUAL_RANGE:
+                return vm.nativeFor(insn.ref) != null;
+
+            default:
+                return false;
+        }
+    }
+
+    /** Whether a translated instruction may throw (i.e. a bad array index, a native failing). */
+    private static boolean mayThrow(Instruction insn) {
+        switch (insn.opcode) {
+            case NOP:
+            case CONST_4:
+            case CONST_16:
+            case CONST:
+            case CONST_HIGH16:
+            case MOVE:
+            case MOVE_FROM16:
+            case MOVE_16:
+            case MOVE_OBJECT:
+            case MOVE_OBJECT_FROM16:
+            case MOVE_OBJECT_16:
+            case MOVE_RESULT:
+            case MOVE_RESULT_OBJECT:
+            case GOTO:
+            case GOTO_16:
+            case GOTO_32:
+            case IF_GT:
+            case IF_GE:
+            case PACKED_SWITCH:
+            case SPARSE_SWITCH:
+            case ADD_INT:
+            case ADD_INT_2ADDR:
+            case ADD_INT_LIT16:
+            case ADD_INT_LIT8:
+            case XOR_INT:
+            case XOR_INT_2ADDR:
+            case XOR_INT_LIT16:
+            case XOR_INT_LIT8:
+            case INT_TO_CHAR:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * If the instruction may branch backwards, number of instructions
+     * from the furthest target to it (an estimate of the loop body), else 0.
+     */
+    private static int loopSpan(Instruction insn, int pc) {
+        int first = pc + 1;
+        if (insn.opcode.format == Opcode.Format.Format31t) {
+            if (insn.targets != null)
+                for (int target : insn.targets) first = Math.min(first, target);
+        } else if (insn.target >= 0) {
+            first = insn.target;
+        }
+        return first <= pc ? pc - first + 1 : 0;
+    }
+
+    /** Push an entry of the refs field of the generated class. */
+    private static void loadRef(ClassWriter cw, Code out, int index) {
+        out.op(GETSTATIC).u2(cw.fieldRef(cw.className(), "refs", "[Ljava/lang/Object;"));
+        out.iconst(cw, index).op(AALOAD);
+    }
+
+    /** Suffix of the array access helper for an aget or aput instruction. */
+    private static String elementKind(Opcode opcode) {
+        switch (opcode) {
+            case AGET_OBJECT:
+            case APUT_OBJECT:
+                return "Object";
+            case AGET_BOOLEAN:
+            case AGET_BYTE:
+            case APUT_BOOLEAN:
+            case APUT_BYTE:
+                return "Byte";
+            case AGET_CHAR:
+            case APUT_CHAR:
+                return "Char";
+            case AGET_SHORT:
+            case APUT_SHORT:
+                return "Short";
+            default:
+                return "Int";
+        }
+    }
+
+    private static Code translate(QuickVM vm, ClassWriter cw, Method method, Constants constants) {
+        Instruction[] code = method.code;
+        int n = code.length, registers = method.registers;
+        Code out = new Code(8, FIRST_REG + registers);
+
+        Label[] labels = new Label[n + 1];
+        for (int pc = 0; pc <= n; pc++) labels[pc] = new Label();
+
+        // Find out where the interpreter may hand control back to us
+        boolean[] supported = new boolean[n];
+        TreeSet<Integer> entries = new TreeSet<>();
+        entries.add(0);
+        for (int pc = 0; pc < n; pc++) {
+            Instruction insn = code[pc];
+            supported[pc] = isSupported(vm, insn);
+            if (!supported[pc] || loopSpan(insn, pc) > 0) entries.add(pc + 1);
+            if (insn.target >= 0 && insn.opcode.format != Opcode.Format.Format31t) entries.add(insn.target);
+            if (insn.targets != null && insn.opcode.format == Opcode.Format.Format31t)
+                for (int target : insn.targets) entries.add(target);
+        }
+
+        // Load registers and dispatch on the pc
+        for (int i = 0; i < registers; i++) {
+            out.local(ALOAD, REGS_ARG).iconst(cw, i).op(IALOAD).local(ISTORE, FIRST_REG + i);
+        }
+        int[] keys = new int[entries.size()];
+        Label[] targets = new Label[entries.size()];
+        int k = 0;
+        for (int entry : entries) {
+            keys[k] = entry;
+            targets[k++] = labels[entry];
+        }
+        Label notEntry = new Label(), spill = new Label();
+        out.local(ILOAD, PC_ARG).lookupswitch(keys, notEntry, targets);
+        out.place(notEntry).local(ILOAD, PC_ARG).op(IRETURN);
+
+        Label[] handlers = new Label[n];
+        for (int pc = 0; pc < n; pc++) {
+            out.place(labels[pc]);
+            if (supported[pc]) {
+                if (mayThrow(code[pc])) {
+                    handlers[pc] = new Label();
+                    out.handler(labels[pc], labels[pc + 1], handlers[pc]);
+                }
+                int span = loopSpan(code[pc], pc);
+                if (span > 0) {
+                    Label cont = new Label();
+                    out.local(ALOAD, VM_ARG).iconst(cw, span);
+                    out.op(INVOKESTATIC).u2(cw.methodRef(COMPILED, "backEdge", "(L" + VM + ";I)Z"));
+                    out.jump(IFEQ, cont).iconst(cw, pc).jump(GOTO, spill).place(cont);
+                }
+                translate(vm, cw, out, code[pc], labels, labels[pc + 1], constants);
+            } else {
+                out.iconst(cw, pc).jump(GOTO, spill);
+            }
+        }
+        out.place(labels[n]).iconst(cw, n).jump(GOTO, spill);
+
+        // Exit to the interpreter: pc is on the stack
+        out.place(spill);
+        for (int i = 0; i < registers; i++) {
+            out.local(ALOAD, REGS_ARG).iconst(cw, i).local(ILOAD, FIRST_REG + i).op(IASTORE);
+        }
+        out.op(IRETURN);
+
+        // An instruction threw: the exception is on the stack, and its pc goes in the pc argument
+        Label fail = new Label();
+        for (int pc = 0; pc < n; pc++) {
+            if (handlers[pc] != null) out.place(handlers[pc]).iconst(cw, pc).local(ISTORE, PC_ARG).jump(GOTO, fail);
+        }
+        out.place(fail);
+        for (int i = 0; i < registers; i++) {
+            out.local(ALOAD, REGS_ARG).iconst(cw, i).local(ILOAD, FIRST_REG + i).op(IASTORE);
+        }
+        out.local(ALOAD, VM_ARG).local(ILOAD, PC_ARG);
+        out.op(INVOKESTATIC).u2(cw.methodRef(COMPILED, "fail", "(L" + VM + ";I)V"));
+        out.op(ATHROW);
+        return out;
+    }
+
+    private static void translate(QuickVM vm, ClassWriter cw, Code out, Instruction insn, Label[] labels, Label next,
+            Constants constants) {
+        int a = FIRST_REG + insn.a, b = FIRST_REG + insn.b, c = FIRST_REG + insn.c;
+        switch (insn.opcode) {
+
+            case NOP:
+                return;
+
+            case CONST_4:
+            case CONST_16:
+            case CONST:
+            case CONST_HIGH16:
+                out.iconst(cw, (int) insn.literal).local(ISTORE, a);
+                return;
+
+            case CONST_STRING:
+            case CONST_STRING_JUMBO:
+                out.local(ALOAD, VM_ARG);
+                loadRef(cw, out, constants.refIndex(insn.ref));
+                out.op(INVOKESTATIC).u2(cw.methodRef(COMPILED, "constString", "(L" + VM + ";Ljava/lang/Object;)I"));
+                out.local(ISTORE, a);
+                return;
+
+            case MOVE:
+            case MOVE_FROM16:
+            case MOVE_16:
+            case MOVE_OBJECT:
+            case MOVE_OBJECT_FROM16:
+            case MOVE_OBJECT_16:
+                out.local(ILOAD, b).local(ISTORE, a);
+                return;
+
+            case MOVE_RESULT:
+            case MOVE_RESULT_OBJECT:
+                out.local(ALOAD, VM_ARG).op(INVOKESTATIC).u2(cw.methodRef(COMPILED, "result", "(L" + VM + ";)I"));
+                out.local(ISTORE, a);
+                return;
+
+            case RETURN_OBJECT:
+                out.local(ALOAD, VM_ARG).local(ILOAD, a);
+                out.op(INVOKESTATIC).u2(cw.methodRef(COMPILED, "setResult", "(L" + VM + ";I)V"));
+                out.local(ALOAD, VM_ARG).op(INVOKEVIRTUAL).u2(cw.methodRef(VM, "closeScope", "()V"));
+                out.op(ICONST_M1).op(IRETURN);
+                return;
+
+            case RETURN_VOID:
+                out.local(ALOAD, VM_ARG).op(INVOKEVIRTUAL).u2(cw.methodRef(VM, "closeScope", "()V"));
+                out.op(ICONST_M1).op(IRETURN);
+                return;
+
+            /** BRANCHING **/
+
+            case GOTO:
+            case GOTO_16:
+            case GOTO_32:
+                out.jump(GOTO, labels[insn.target]);
+                return;
+
+            case IF_GT:
+                out.local(ILOAD, a).local(ILOAD, b).jump(IF_ICMPGT, labels[insn.target]);
+                return;
+
+            case IF_GE:
+                out.local(ILOAD, a).local(ILOAD, b).jump(IF_ICMPGE, labels[insn.target]);
+                return;
+
+            case PACKED_SWITCH: {
+                Label[] targets = new Label[insn.targets.length];
+                for (int i = 0; i < targets.length; i++) targets[i] = labels[insn.targets[i]];
+                out.local(ILOAD, a).tableswitch((int) insn.literal, next, targets);
+                return;
+            }
+
+            case SPARSE_SWITCH: {
+                Label[] targets = new Label[insn.targets.length];
+                for (int i = 0; i < targets.length; i++) targets[i] = labels[insn.targets[i]];
+                out.local(ILOAD, a).lookupswitch(insn.keys, next, targets);
+                return;
+            }
+
+            /** METHOD INVOCATION **/
+
+            case INVOKE_DIRECT:
+            case INVOKE_STATIC:
+            case INVOKE_VIRTUAL:
+            case INVOKE_DIRECT_RANGE:
+            case INVOKE_STATIC_RANGE:
+            case INVOKE_VIRTUAL_RANGE: {
+                int index = constants.nativeIndex(vm.nativeFor(insn.ref));
+                out.op(GETSTATIC).u2(cw.fieldRef(cw.className(), "natives", "[L" + HANDLER + ";"));
+                out.iconst(cw, index).op(AALOAD).local(ALOAD, VM_ARG);
+                out.iconst(cw, insn.regs.length).op(NEWARRAY).u1(T_INT);
+                for (int i = 0; i < insn.regs.length; i++)
+                    out.op(DUP).iconst(cw, i).local(ILOAD, FIRST_REG + insn.regs[i]).op(IASTORE);
+                out.op(INVOKEINTERFACE).u2(cw.interfaceMethodRef(HANDLER, "handle", "(L" + VM + ";[I)V")).u1(3).u1(0);
+                return;
+            }
+
+            /** STATIC FIELDS **/
+
+            case SGET:
+            case SGET_OBJECT:
+            case SGET_BOOLEAN:
+            case SGET_BYTE:
+            case SGET_CHAR:
+            case SGET_SHORT:
+                out.local(ALOAD, VM_ARG);
+                loadRef(cw, out, constants.refIndex(insn.field));
+                out.op(INVOKESTATIC).u2(cw.methodRef(COMPILED, "sget", "(L" + VM + ";Ljava/lang/Object;)I"));
+                out.local(ISTORE, a);
+                return;
+
+            case SPUT:
+            case SPUT_OBJECT:
+            case SPUT_BOOLEAN:
+            case SPUT_BYTE:
+            case SPUT_CHAR:
+            case SPUT_SHORT:
+                out.local(ALOAD, VM_ARG);
+                loadRef(cw, out, constants.refIndex(insn.field));
+                out.local(ILOAD, a);
+                out.op(INVOKESTATIC).u2(cw.methodRef(COMPILED, "sput", "(L" + VM + ";Ljava/lang/Object;I)V"));
+                return;
+
+            /** ARRAYS **/
+
+            case AGET:
+            case AGET_OBJECT:
+            case AGET_BOOLEAN:
+            case AGET_BYTE:
+            case AGET_CHAR:
+            case AGET_SHORT:
+                out.local(ALOAD, VM_ARG).local(ILOAD, b).local(ILOAD, c);
+                out.op(INVOKESTATIC).u2(cw.methodRef(COMPILED, "aget" + elementKind(insn.opcode), "(L" + VM + ";II)I"));
+                out.local(ISTORE, a);
+                return;
+
+            case APUT:
+            case APUT_OBJECT:
+            case APUT_BOOLEAN:
+            case APUT_BYTE:
+            case APUT_CHAR:
+            case APUT_SHORT:
+                out.local(ALOAD, VM_ARG).local(ILOAD, b).local(ILOAD, c).local(ILOAD, a);
+                out.op(INVOKESTATIC).u2(cw.methodRef(COMPILED, "aput" + elementKind(insn.opcode), "(L" + VM + ";III)V"));
+                return;
+
+            case ARRAY_LENGTH:
+                out.local(ALOAD, VM_ARG).local(ILOAD, b);
+                out.op(INVOKESTATIC).u2(cw.methodRef(COMPILED, "length", "(L" + VM + ";I)I"));
+                out.local(ISTORE, a);
+                return;
+
+            /** ARITHMETICS **/
+
+            case ADD_INT:
+            case ADD_INT_2ADDR:
+                out.local(ILOAD, b).local(ILOAD, c).op(IADD).local(ISTORE, a);
+                return;
+
+            case ADD_INT_LIT16:
+            case ADD_INT_LIT8:
+                out.local(ILOAD, b).iconst(cw, (int) insn.literal).op(IADD).local(ISTORE, a);
+                return;
+
+            case REM_INT:
+            case REM_INT_2ADDR:
+                out.local(ILOAD, b).local(ILOAD, c).op(IREM).local(ISTORE, a);
+                return;
+
+            case REM_INT_LIT16:
+            case REM_INT_LIT8:
+                out.local(ILOAD, b).iconst(cw, (int) insn.literal).op(IREM).local(ISTORE, a);
+                return;
+
+            case XOR_INT:
+            case XOR_INT_2ADDR:
+                out.local(ILOAD, b).local(ILOAD, c).op(IXOR).local(ISTORE, a);
+                return;
+
+            case XOR_INT_LIT16:
+            case XOR_INT_LIT8:
+                out.local(ILOAD, b).iconst(cw, (int) insn.literal).op(IXOR).local(ISTORE, a);
+                return;
+
+            case INT_TO_CHAR:
+                out.local(ILOAD, b).op(I2C).local(ISTORE, a);
+                return;
+
+            default:
+                throw new IllegalStateException("Not translatable: " + insn);
+        }
+    }
+
+}
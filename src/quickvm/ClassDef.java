@@ -0,0 +1,189 @@
+package quickvm;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import quickvm.util.SmaliLexer;
+import static quickvm.util.SmaliLexer.*;
+
+/**
+ * A loaded smali class: its directives indexed by signature, with
+ * method bodies kept as offsets into the source so they can be
+ * decoded on first use.
+ */
+public class ClassDef {
+
+    public static class FieldDef {
+        /** Field signature (i.e. "z:Ljava/lang/String;"). */
+        final String signature;
+
+        final boolean isStatic;
+
+        /** Initial value literal, null if none. */
+        final String value;
+
+        /**
+         * Index in the static field array of the class, or in the instance
+         * layout (which starts with the superclass fields) once laid out.
+         */
+        int slot;
+
+        public FieldDef(String signature, boolean isStatic, String value) {
+            this.signature = signature;
+            this.isStatic = isStatic;
+            this.value = value;
+        }
+    }
+
+    public static class MethodDef {
+        /** Method signature (i.e. "<clinit>()V"). */
+        final String signature;
+
+        final boolean isStatic;
+
+        /** Region of the source between {@code .method} and {@code .end method}. */
+        final int start, end;
+
+        /** Decoded body, null until first invoked (or after being evicted). */
+        volatile Method decoded;
+
+        /** Content hash of the body, set by the {@link CodeStore}. */
+        String bodyHash;
+
+        public MethodDef(String signature, boolean isStatic, int start, int end) {
+            this.signature = signature;
+            this.isStatic = isStatic;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    /** Class name, without L and semicolon (i.e. "foo/Bar"). */
+    final String name;
+
+    /** Unique number, indexes the VM's per-class static field arrays. */
+    final int id = nextId.getAndIncrement();
+
+    /** Smali source of the class. */
+    final ByteBuffer source;
+
+    /** Modification time of the smali file when it was loaded. */
+    long mtime;
+
+    /** Superclass descriptor, null if none. */
+    String superName;
+
+    final Map<String, FieldDef> fields = new LinkedHashMap<>();
+
+    final Map<String, MethodDef> methods = new LinkedHashMap<>();
+
+    /** Number of static fields. */
+    int staticCount;
+
+    /* Instance layout, set by ClassPath.layout() */
+
+    /** Superclass, null if it's not in the class path. */
+    ClassDef superClass;
+
+    /** Number of superclasses in the class path. */
+    int depth;
+
+    /** Superclasses from the root, and this class at the end (at depth). */
+    ClassDef[] ancestors;
+
+    /** Instance field names by slot, null until laid out. */
+    volatile String[] instanceFields;
+
+    public ClassDef(String name, ByteBuffer source) {
+        this.name = name;
+        this.source = source;
+    }
+
+    public MethodDef getMethod(String signature) {
+        MethodDef method = methods.get(signature);
+        if (method == null) throw new IllegalArgumentException("Method not found");
+        return method;
+    }
+
+    public boolean hasMethod(String signature) {
+        return methods.containsKey(signature);
+    }
+
+    /** Lexer over the body of a method of this class. */
+    public SmaliLexer lexMethod(MethodDef method) {
+        return new SmaliLexer(source, method.start, method.end);
+    }
+
+    /**
+     * Index the directives of a class, given its smali source.
+     */
+    public static ClassDef parse(String name, ByteBuffer source) {
+        ClassDef cls = new ClassDef(name, source);
+        SmaliLexer lex = new SmaliLexer(source);
+        while (lex.next() != EOF) {
+            if (lex.type() != WORD) {
+                lex.skipLine();
+            } else if (lex.is(".super")) {
+                while (lex.next() == WORD) cls.superName = lex.text();
+            } else if (lex.is(".field")) {
+                parseField(cls, lex);
+            } else if (lex.is(".method")) {
+                parseMethod(cls, lex);
+            } else {
+                lex.skipLine();
+            }
+        }
+        return cls;
+    }
+
+    private static void parseField(ClassDef cls, SmaliLexer lex) {
+        boolean isStatic = false;
+        int sigStart = -1, sigEnd = -1;
+        String value = null;
+        while (lex.next() != NEWLINE && lex.type() != EOF) {
+            if (lex.is("=")) {
+                int valueStart = -1, valueEnd = -1;
+                while (lex.next() != NEWLINE && lex.type() != EOF) {
+                    if (valueStart < 0) valueStart = lex.start();
+                    valueEnd = lex.end();
+                }
+                if (valueStart >= 0) value = lex.text(valueStart, valueEnd);
+                break;
+            }
+            if (lex.is("static")) isStatic = true;
+            sigStart = lex.start();
+            sigEnd = lex.end();
+        }
+        String signature = lex.text(sigStart, sigEnd);
+        FieldDef field = new FieldDef(signature, isStatic, value);
+        if (isStatic) field.slot = cls.staticCount++;
+        cls.fields.put(signature, field);
+    }
+
+    private static void parseMethod(ClassDef cls, SmaliLexer lex) {
+        boolean isStatic = false;
+        int sigStart = -1, sigEnd = -1;
+        while (lex.next() != NEWLINE && lex.type() != EOF) {
+            if (lex.is("static")) isStatic = true;
+            sigStart = lex.start();
+            sigEnd = lex.end();
+        }
+        String signature = lex.text(sigStart, sigEnd);
+
+        int start = lex.position();
+        while (true) {
+            if (lex.next() == EOF) throw new IllegalArgumentException("Unexpected end of file");
+            int end = lex.start();
+            if (lex.is(".end") && lex.next() == WORD && lex.is("method")) {
+                cls.methods.put(signature, new MethodDef(signature, isStatic, start, end));
+                lex.skipLine();
+                return;
+            }
+            lex.skipLine();
+        }
+    }
+
+}
@@ -0,0 +1,247 @@
+package quickvm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import quickvm.util.SmaliLexer;
+
+/**
+ * Loads classes from the smali root. The root is listed once, up front,
+ * so classes without smali (i.e. framework classes) are known missing
+ * without asking the filesystem. Every file is read and indexed once,
+ * methods are decoded on first use and kept afterwards.
+ * Safe to share between VMs running on different threads.
+ */
+public class ClassPath {
+
+    /** Root directory where smali is stored. */
+    final File root;
+
+    /** Loaded classes, by name. */
+    final ConcurrentMap<String, ClassDef> classes = new ConcurrentHashMap<>();
+
+    /** Resolved field references, by full name. */
+    final ConcurrentMap<String, FieldRef> fields = new ConcurrentHashMap<>();
+
+    /** Names of the classes under the root, null until listed. */
+    private volatile Set<String> index;
+
+    /** Directories the index was listed from, with their modification time. */
+    private Map<String, Long> indexedDirs;
+
+    /** Saved index and decoded methods from a previous run, null if none. */
+    CodeCache codeCache;
+
+    /** Decoded methods. */
+    final CodeStore store = new CodeStore();
+
+    public ClassPath(File root) {
+        this.root = root;
+    }
+
+    /** Whether the class has smali under the root. */
+    public boolean exists(String className) {
+        Set<String> index = this.index;
+        if (index == null) index = buildIndex();
+        return index.contains(className);
+    }
+
+    /**
+     * Class name of a smali file path relative to the root
+     * (i.e. "./foo/Bar.smali" is "foo/Bar").
+     */
+    public static String classNameOf(String file) {
+        if (!file.endsWith(".smali")) throw new IllegalArgumentException("Expected smali file path");
+        String name = new File(file.substring(0, file.length() - 6)).toPath().normalize().toString();
+        return name.replace(File.separatorChar, '/');
+    }
+
+    /** Throws NoSuchFileException if the class isn't in the class path. */
+    public ClassDef getClass(String className) throws IOException {
+        ClassDef cls = classes.get(className);
+        if (cls == null) {
+            if (!exists(className)) throw new NoSuchFileException(className + ".smali");
+            cls = loadClass(className);
+            ClassDef loaded = classes.putIfAbsent(className, cls);
+            if (loaded != null) cls = loaded;
+        }
+        return cls;
+    }
+
+    /** Like {@link #getClass}, but laid out, and null if not in the class path. */
+    public ClassDef findClass(String className) throws IOException {
+        return exists(className) ? layout(getClass(className)) : null;
+    }
+
+    /**
+     * Returns the decoded method, decoding it if needed.
+     * @param name full method name (i.e. "Lfoo/Bar;->baz(I)V")
+     */
+    public Method getMethod(String name) throws IOException {
+        String className = name.split(";")[0].substring(1);
+        String methodName = name.split("->")[1];
+        if (!exists(className)) throw new IllegalArgumentException("Class not found for: " + name);
+        ClassDef cls = getClass(className);
+        ClassDef.MethodDef def = cls.getMethod(methodName);
+        Method method = store.get(cls, def, name);
+        if (method == null) {
+            method = codeCache != null ? codeCache.load(cls, methodName) : null;
+            if (method == null) method = Decoder.decode(name, def.isStatic, cls.lexMethod(def));
+            link(method);
+            method = store.put(cls, def, method);
+        }
+        return method;
+    }
+
+    /**
+     * Returns the resolved field reference.
+     * @param name full field name (i.e. "Lfoo/Bar;->z:I")
+     */
+    public FieldRef getField(String name) throws IOException {
+        FieldRef field = fields.get(name);
+        if (field == null) {
+            field = resolveField(name);
+            FieldRef resolved = fields.putIfAbsent(name, field);
+            if (resolved != null) field = resolved;
+        }
+        return field;
+    }
+
+    private FieldRef resolveField(String name) throws IOException {
+        String[] parts = name.split("->", 2);
+        if (!parts[0].startsWith("L") || !parts[0].endsWith(";"))
+            return new FieldRef(name, null, false, -1);
+        // Fields may be referenced through a subclass
+        for (ClassDef cls = findClass(parts[0].substring(1, parts[0].length() - 1)); cls != null; cls = cls.superClass) {
+            ClassDef.FieldDef def = cls.fields.get(parts[1]);
+            if (def != null) return new FieldRef(name, cls, def.isStatic, def.slot);
+        }
+        return new FieldRef(name, null, false, -1);
+    }
+
+    /** Resolve the field and class references of a decoded method. */
+    private void link(Method method) throws IOException {
+        for (Instruction insn : method.code) {
+            String mnemonic = insn.opcode.mnemonic;
+            if (mnemonic.startsWith("iget") || mnemonic.startsWith("iput")
+                    || mnemonic.startsWith("sget") || mnemonic.startsWith("sput")) {
+                insn.field = getField(insn.ref);
+            } else if (insn.opcode == Opcode.NEW_INSTANCE && insn.ref.startsWith("L")) {
+                insn.cls = findClass(insn.ref.substring(1, insn.ref.length() - 1));
+            }
+        }
+    }
+
+    /**
+     * Compute the instance layout of a class, if not done yet:
+     * superclass fields come first, so their slots are the same
+     * in every subclass.
+     */
+    synchronized ClassDef layout(ClassDef cls) throws IOException {
+        if (cls.instanceFields != null) return cls;
+        if (cls.ancestors != null) return null; // inheritance cycle
+        cls.ancestors = new ClassDef[0];
+        if (cls.superName != null && cls.superName.startsWith("L"))
+            cls.superClass = findClass(cls.superName.substring(1, cls.superName.length() - 1));
+
+        List<String> names = new ArrayList<>();
+        if (cls.superClass != null) {
+            cls.depth = cls.superClass.depth + 1;
+            for (String name : cls.superClass.instanceFields) names.add(name);
+        }
+        cls.ancestors = new ClassDef[cls.depth + 1];
+        if (cls.superClass != null)
+            System.arraycopy(cls.superClass.ancestors, 0, cls.ancestors, 0, cls.depth);
+        cls.ancestors[cls.depth] = cls;
+
+        for (ClassDef.FieldDef field : cls.fields.values()) {
+            if (field.isStatic) continue;
+            field.slot = names.size();
+            names.add("L" + cls.name + ";->" + field.signature);
+        }
+        cls.instanceFields = names.toArray(new String[names.size()]);
+        return cls;
+    }
+
+    private synchronized Set<String> buildIndex() {
+        if (index == null) {
+            Set<String> names = codeCache != null ? codeCache.index() : null;
+            Map<String, Long> dirs = new ConcurrentHashMap<>();
+            if (names != null) {
+                dirs.putAll(codeCache.indexedDirs());
+            } else {
+                names = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                ForkJoinPool pool = new ForkJoinPool();
+                pool.invoke(new ListDirectory(root, "", names, dirs));
+                pool.shutdown();
+            }
+            indexedDirs = dirs;
+            index = names;
+        }
+        return index;
+    }
+
+    /** Class names in the index, listing the root if not done yet. */
+    Set<String> indexedClasses() {
+        Set<String> index = this.index;
+        return index != null ? index : buildIndex();
+    }
+
+    /** Directories the index was listed from (relative to the root), with their modification time. */
+    synchronized Map<String, Long> indexedDirs() {
+        buildIndex();
+        return indexedDirs;
+    }
+
+    /** Adds the classes in a directory to the index, and forks for subdirectories. */
+    private static class ListDirectory extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final File dir;
+        final String prefix;
+        final Set<String> names;
+        final Map<String, Long> dirs;
+
+        ListDirectory(File dir, String prefix, Set<String> names, Map<String, Long> dirs) {
+            this.dir = dir;
+            this.prefix = prefix;
+            this.names = names;
+            this.dirs = dirs;
+        }
+
+        @Override
+        protected void compute() {
+            // Before listing, so a file added meanwhile invalidates the saved index
+            dirs.put(prefix, dir.lastModified());
+            File[] files = dir.listFiles();
+            if (files == null) return;
+            List<ListDirectory> subdirs = new ArrayList<>();
+            for (File file : files) {
+                String name = file.getName();
+                if (file.isDirectory())
+                    subdirs.add(new ListDirectory(file, prefix + name + "/", names, dirs));
+                else if (name.endsWith(".smali"))
+                    names.add(prefix + name.substring(0, name.length() - 6));
+            }
+            invokeAll(subdirs);
+        }
+    }
+
+    private ClassDef loadClass(String className) throws IOException {
+        File file = new File(root, className + ".smali");
+        long mtime = file.lastModified();
+        ClassDef cls = ClassDef.parse(className, SmaliLexer.load(file));
+        cls.mtime = mtime;
+        return cls;
+    }
+
+}
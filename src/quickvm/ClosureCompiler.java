@@ -0,0 +1,371 @@
+package quickvm;
+
+import java.io.IOException;
+import java.util.Arrays;
+import quickvm.QuickVM.Frame;
+
+/**
+ * Second execution tier: compiles a decoded method into one node object
+ * per instruction, with operands and branch targets captured as final
+ * fields, so HotSpot can specialize each of them. Instructions without
+ * a specialized node just go through {@link Ops#execute}.
+ */
+public class ClosureCompiler {
+
+    public static abstract class Node {
+        /**
+         * Execute the instruction and return the pc of the next one.
+         * If the instruction pushed or popped a frame, the result is
+         * negative: the bitwise complement of the pc to resume at.
+         */
+        abstract int exec(QuickVM vm, Frame f, int[] r) throws IOException;
+    }
+
+    public static Node[] compile(Method method) {
+        Node[] nodes = new Node[method.code.length];
+        for (int pc = 0; pc < nodes.length; pc++)
+            nodes[pc] = compile(method.code[pc], pc);
+        return nodes;
+    }
+
+    /**
+     * Run the frame on top of the stack until it invokes a method
+     * or returns.
+     */
+    public static void run(QuickVM vm, Frame f) throws IOException {
+        Node[] nodes = f.method.closures;
+        int pc = f.pc, current = -1;
+        try {
+            while (pc >= 0) {
+                if (--vm.budget < 0 || vm.cancelled) {
+                    // If the class is abandoned here, the instruction at pc never ran
+                    if (current >= 0) vm.lastCommand = f.method.code[current];
+                    current = -1;
+                    f.pc = pc;
+                    vm.safepoint();
+                }
+                current = pc;
+                pc = nodes[pc].exec(vm, f, f.locals);
+            }
+            f.pc = ~pc;
+        } catch (RuntimeException | IOException ex) {
+            // Leave the frame as the interpreter would, for diagnostics
+            if (current >= 0) {
+                f.pc = current + 1;
+                vm.lastCommand = f.method.code[current];
+            }
+            throw ex;
+        }
+    }
+
+    private static Node compile(final Instruction insn, final int pc) {
+        final int a = insn.a, b = insn.b, c = insn.c, next = pc + 1;
+        switch (insn.opcode) {
+
+            case CONST_4:
+            case CONST_16:
+            case CONST:
+            case CONST_HIGH16: {
+                final int value = (int) insn.literal;
+                return new Node() {
+                    @Override
+                    int exec(QuickVM vm, Frame f, int[] r) {
+                        r[a] = value;
+                        return next;
+                    }
+                };
+            }
+
+            case MOVE:
+            case MOVE_FROM16:
+            case MOVE_16:
+            case MOVE_OBJECT:
+            case MOVE_OBJECT_FROM16:
+            case MOVE_OBJECT_16:
+                return new Node() {
+                    @Override
+                    int exec(QuickVM vm, Frame f, int[] r) {
+                        r[a] = r[b];
+                        return next;
+                    }
+                };
+
+            case MOVE_RESULT:
+            case MOVE_RESULT_OBJECT:
+                return new Node() {
+                    @Override
+                    int exec(QuickVM vm, Frame f, int[] r) {
+                        r[a] = vm.returnValue;
+                        return next;
+                    }
+                };
+
+            case RETURN_VOID:
+                return new Node() {
+                    @Override
+                    int exec(QuickVM vm, Frame f, int[] r) {
+                        vm.closeScope();
+                        return ~next;
+                    }
+                };
+
+            case RETURN_OBJECT:
+                return new Node() {
+                    @Override
+                    int exec(QuickVM vm, Frame f, int[] r) {
+                        vm.returnValue = r[a];
+                        vm.closeScope();
+                        return ~next;
+                    }
+                };
+
+            /** BRANCHING **/
+
+            case GOTO:
+            case GOTO_16:
+            case GOTO_32: {
+                final int target = insn.target;
+                return new Node() {
+                    @Override
+                    int exec(QuickVM vm, Frame f, int[] r) {
+                        return target;
+                    }
+                };
+            }
+
+            case IF_GT: {
+                final int target = insn.target;
+                return new Node() {
+                    @Override
+                    int exec(QuickVM vm, Frame f, int[] r) {
+                        return r[a] > r[b] ? target : next;
+                    }
+                };
+            }
+
+            case IF_GE: {
+                final int target = insn.target;
+                return new Node() {
+                    @Override
+                    int exec(QuickVM vm, Frame f, int[] r) {
+                        return r[a] >= r[b] ? target : next;
+                    }
+                };
+            }
+
+            case PACKED_SWITCH: {
+                final long first = insn.literal;
+                final int[] targets = insn.targets;
+                return new Node() {
+                    @Override
+                    int exec(QuickVM vm, Frame f, int[] r) {
+                        long index = (long) r[a] - first;
+                        return index >= 0 && index < targets.length ? targets[(int) index] : next;
+                    }
+                };
+            }
+
+            case SPARSE_SWITCH: {
+                final int[] keys = insn.keys, targets = insn.targets;
+                return new Node() {
+                    @Override
+                    int exec(QuickVM vm, Frame f, int[] r) {
+                        int index = Arrays.binarySearch(keys, r[a]);
+                        return index >= 0 ? targets[index] : next;
+                    }
+                };
+            }
+
+            /** ARRAYS **/
+
+            case AGET:
+                return new Node() {
+                    @Override
+                    int exec(QuickVM vm, Frame f, int[] r) {
+                        r[a] = ((VMObject.IntArrayObject) vm.heap.get(r[b])).value[r[c]];
+                        return next;
+                    }
+                };
+
+            case AGET_OBJECT:
+                return new Node() {
+                    @Override
+                    int exec(QuickVM vm, Frame f, int[] r) {
+                        r[a] = ((VMObject.RefArrayObject) vm.heap.get(r[b])).value[r[c]];
+                        return next;
+                    }
+                };
+
+            case AGET_BOOLEAN:
+            case AGET_BYTE:
+                return new Node() {
+                    @Override
+                    int exec(QuickVM vm, Frame f, int[] r) {
+                        r[a] = ((VMObject.ByteArrayObject) vm.heap.get(r[b])).value[r[c]];
+                        return next;
+                    }
+                };
+
+            case AGET_CHAR:
+                return new Node() {
+                    @Override
+                    int exec(QuickVM vm, Frame f, int[] r) {
+                        r[a] = ((VMObject.CharArrayObject) vm.heap.get(r[b])).value[r[c]];
+                        return next;
+                    }
+                };
+
+            case AGET_SHORT:
+                return new Node() {
+                    @Override
+                    int exec(QuickVM vm, Frame f, int[] r) {
+                        r[a] = ((VMObject.ShortArrayObject) vm.heap.get(r[b])).value[r[c]];
+                        return next;
+                    }
+                };
+
+            case APUT:
+                return new Node() {
+                    @Override
+                    int exec(QuickVM vm, Frame f, int[] r) {
+                        ((VMObject.IntArrayObject) vm.heap.get(r[b])).value[r[c]] = r[a];
+                        return next;
+                    }
+                };
+
+            case APUT_OBJECT:
+                return new Node() {
+                    @Override
+                    int exec(QuickVM vm, Frame f, int[] r) {
+                        ((VMObject.RefArrayObject) vm.heap.get(r[b])).value[r[c]] = r[a];
+                        return next;
+                    }
+                };
+
+            case APUT_BOOLEAN:
+            case APUT_BYTE:
+                return new Node() {
+                    @Override
+                    int exec(QuickVM vm, Frame f, int[] r) {
+                        ((VMObject.ByteArrayObject) vm.heap.get(r[b])).value[r[c]] = (byte) r[a];
+                        return next;
+                    }
+                };
+
+            case APUT_CHAR:
+                return new Node() {
+                    @Override
+                    int exec(QuickVM vm, Frame f, int[] r) {
+                        ((VMObject.CharArrayObject) vm.heap.get(r[b])).value[r[c]] = (char) r[a];
+                        return next;
+                    }
+                };
+
+            case APUT_SHORT:
+                return new Node() {
+                    @Override
+                    int exec(QuickVM vm, Frame f, int[] r) {
+                        ((VMObject.ShortArrayObject) vm.heap.get(r[b])).value[r[c]] = (short) r[a];
+                        return next;
+                    }
+                };
+
+            case ARRAY_LENGTH:
+                return new Node() {
+                    @Override
+                    int exec(QuickVM vm, Frame f, int[] r) {
+                        r[a] = ((VMObject.ArrayObject) vm.heap.get(r[b])).length();
+                        return next;
+                    }
+                };
+
+            /** ARITHMETICS **/
+
+            case ADD_INT:
+            case ADD_INT_2ADDR:
+                return new Node() {
+                    @Override
+                    int exec(QuickVM vm, Frame f, int[] r) {
+                        r[a] = r[b] + r[c];
+                        return next;
+                    }
+                };
+
+            case ADD_INT_LIT16:
+            case ADD_INT_LIT8: {
+                final int lit = (int) insn.literal;
+                return new Node() {
+                    @Override
+                    int exec(QuickVM vm, Frame f, int[] r) {
+                        r[a] = r[b] + lit;
+                        return next;
+                    }
+                };
+            }
+
+            case REM_INT:
+            case REM_INT_2ADDR:
+                return new Node() {
+                    @Override
+                    int exec(QuickVM vm, Frame f, int[] r) {
+                        r[a] = r[b] % r[c];
+                        return next;
+                    }
+                };
+
+            case REM_INT_LIT16:
+            case REM_INT_LIT8: {
+                final int lit = (int) insn.literal;
+                return new Node() {
+                    @Override
+                    int exec(QuickVM vm, Frame f, int[] r) {
+                        r[a] = r[b] % lit;
+                        return next;
+                    }
+                };
+            }
+
+            case XOR_INT:
+            case XOR_INT_2ADDR:
+                return new Node() {
+                    @Override
+                    int exec(QuickVM vm, Frame f, int[] r) {
+                        r[a] = r[b] ^ r[c];
+                        return next;
+                    }
+                };
+
+            case XOR_INT_LIT16:
+            case XOR_INT_LIT8: {
+                final int lit = (int) insn.literal;
+                return new Node() {
+                    @Override
+                    int exec(QuickVM vm, Frame f, int[] r) {
+                        r[a] = r[b] ^ lit;
+                        return next;
+                    }
+                };
+            }
+
+            case INT_TO_CHAR:
+                return new Node() {
+                    @Override
+                    int exec(QuickVM vm, Frame f, int[] r) {
+                        r[a] = (char) r[b];
+                        return next;
+                    }
+                };
+
+            default:
+                return new Node() {
+                    @Override
+                    int exec(QuickVM vm, Frame f, int[] r) throws IOException {
+                        f.pc = next;
+                        Ops.execute(vm, f, insn);
+                        return vm.stack.peek() == f ? f.pc : ~f.pc;
+                    }
+                };
+        }
+    }
+
+}
@@ -0,0 +1,362 @@
+package quickvm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import quickvm.util.SmaliLexer;
+
+/**
+ * Class index and decoded methods of a smali root, saved to a binary file
+ * so the next run over the same tree skips listing and decoding. The file
+ * is memory mapped, and methods are read from it when first invoked.
+ *
+ * The index is valid while the directories it was listed from keep their
+ * modification time (adding or removing a file changes it), and the
+ * methods of a class while its file keeps its size and modification time.
+ * Safe to share between VMs running on different threads.
+ */
+public class CodeCache {
+
+    private static final int MAGIC = 0x51564d43; // "QVMC"
+
+    /** Format of the file. Bump when it, or the decoded representation, changes. */
+    private static final int VERSION = 2;
+
+    private static final Opcode[] OPCODES = Opcode.values();
+
+    /** Saved methods of a class, and the file they were decoded from. */
+    private static class SavedClass {
+        long size, mtime;
+
+        /** Offset and length of each method in the file, by signature. */
+        final Map<String, int[]> methods = new LinkedHashMap<>();
+    }
+
+    final File file;
+
+    final File root;
+
+    /** Mapped file, null if there's none or it's invalid. */
+    private ByteBuffer data;
+
+    private List<String> savedNames;
+    private Map<String, Long> savedDirs;
+    private final Map<String, SavedClass> savedClasses = new HashMap<>();
+
+    /** Whether the saved methods of each class checked so far are still valid. */
+    private final ConcurrentMap<String, Boolean> valid = new ConcurrentHashMap<>();
+
+    /**
+     * Map the cache file, if any. An unreadable or outdated file is ignored
+     * (and replaced on {@link #save}).
+     */
+    public CodeCache(File file, File root) {
+        this.file = file;
+        this.root = root;
+        if (!file.isFile()) return;
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION) return;
+            readContents(buf);
+            data = buf;
+        } catch (IOException | RuntimeException ex) {
+            savedNames = null;
+            savedDirs = null;
+            savedClasses.clear();
+        }
+    }
+
+    private void readContents(ByteBuffer buf) {
+        int dirCount = buf.getInt();
+        savedDirs = new HashMap<>();
+        for (int i = 0; i < dirCount; i++) savedDirs.put(readString(buf), buf.getLong());
+        int nameCount = buf.getInt();
+        savedNames = new ArrayList<>(nameCount);
+        for (int i = 0; i < nameCount; i++) savedNames.add(readString(buf));
+        int classCount = buf.getInt();
+        for (int i = 0; i < classCount; i++) {
+            String name = readString(buf);
+            SavedClass saved = new SavedClass();
+            saved.size = buf.getLong();
+            saved.mtime = buf.getLong();
+            int methodCount = buf.getInt();
+            for (int j = 0; j < methodCount; j++)
+                saved.methods.put(readString(buf), new int[] { buf.getInt(), buf.getInt() });
+            savedClasses.put(name, saved);
+        }
+        // Method offsets are relative to the end of the contents
+        int base = buf.position();
+        for (SavedClass saved : savedClasses.values())
+            for (int[] range : saved.methods.values()) range[0] += base;
+    }
+
+    /** Directories the saved index was listed from, with their modification time. */
+    Map<String, Long> indexedDirs() {
+        return savedDirs;
+    }
+
+    /**
+     * Class names of the saved index, or null if there's none or a
+     * directory changed since.
+     */
+    public Set<String> index() {
+        if (savedNames == null) return null;
+        for (Map.Entry<String, Long> dir : savedDirs.entrySet())
+            if (new File(root, dir.getKey()).lastModified() != dir.getValue()) return null;
+        Set<String> names = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>(savedNames.size() * 2));
+        names.addAll(savedNames);
+        return names;
+    }
+
+    /** Saved method of a class, or null if there's none or the class changed since. */
+    public Method load(ClassDef cls, String signature) {
+        SavedClass saved = savedClasses.get(cls.name);
+        if (saved == null) return null;
+        int[] range = saved.methods.get(signature);
+        if (range == null || !isValid(cls, saved)) return null;
+        ClassDef.MethodDef def = cls.getMethod(signature);
+        ByteBuffer buf = data.duplicate();
+        buf.position(range[0]);
+        return readMethod(buf, cls.lexMethod(def), def.start);
+    }
+
+    private boolean isValid(ClassDef cls, SavedClass saved) {
+        Boolean ok = valid.get(cls.name);
+        if (ok == null) {
+            ok = cls.source.limit() == saved.size && cls.mtime == saved.mtime;
+            valid.put(cls.name, ok);
+        }
+        return ok;
+    }
+
+    /**
+     * Write the index and every decoded method of the class path, plus the
+     * still valid methods of the old file, to a new file that replaces it.
+     */
+    public void save(ClassPath classPath) throws IOException {
+        ByteArrayOutputStream blobs = new ByteArrayOutputStream();
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(contents);
+        DataOutputStream blobOut = new DataOutputStream(blobs);
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        Map<String, Long> dirs = classPath.indexedDirs();
+        out.writeInt(dirs.size());
+        for (Map.Entry<String, Long> dir : dirs.entrySet()) {
+            writeString(out, dir.getKey());
+            out.writeLong(dir.getValue());
+        }
+        Set<String> names = classPath.indexedClasses();
+        out.writeInt(names.size());
+        for (String name : names) writeString(out, name);
+
+        // Classes loaded in this run, then those only in the old file
+        List<ClassDef> loaded = new ArrayList<>();
+        for (ClassDef cls : classPath.classes.values()) {
+            for (ClassDef.MethodDef def : cls.methods.values()) {
+                if (def.decoded != null) {
+                    loaded.add(cls);
+                    break;
+                }
+            }
+        }
+        Set<String> written = new HashSet<>();
+        List<String> kept = new ArrayList<>();
+        for (ClassDef cls : loaded) written.add(cls.name);
+        for (Map.Entry<String, SavedClass> entry : savedClasses.entrySet()) {
+            if (written.contains(entry.getKey())) continue;
+            SavedClass saved = entry.getValue();
+            File smali = new File(root, entry.getKey() + ".smali");
+            if (smali.length() == saved.size && smali.lastModified() == saved.mtime) kept.add(entry.getKey());
+        }
+        out.writeInt(loaded.size() + kept.size());
+
+        for (ClassDef cls : loaded) {
+            SavedClass saved = savedClasses.get(cls.name);
+            boolean oldValid = saved != null && isValid(cls, saved);
+            Map<String, Object> methods = new LinkedHashMap<>();
+            if (oldValid) methods.putAll(saved.methods);
+            for (ClassDef.MethodDef def : cls.methods.values())
+                if (def.decoded != null) methods.put(def.signature, def.decoded);
+
+            writeString(out, cls.name);
+            out.writeLong(cls.source.limit());
+            out.writeLong(cls.mtime);
+            out.writeInt(methods.size());
+            for (Map.Entry<String, Object> method : methods.entrySet()) {
+                int offset = blobs.size();
+                if (method.getValue() instanceof Method) writeMethod(blobOut, (Method) method.getValue());
+                else copyRange(blobOut, (int[]) method.getValue());
+                writeString(out, method.getKey());
+                out.writeInt(offset);
+                out.writeInt(blobs.size() - offset);
+            }
+        }
+        for (String name : kept) {
+            SavedClass saved = savedClasses.get(name);
+            writeString(out, name);
+            out.writeLong(saved.size);
+            out.writeLong(saved.mtime);
+            out.writeInt(saved.methods.size());
+            for (Map.Entry<String, int[]> method : saved.methods.entrySet()) {
+                int offset = blobs.size();
+                copyRange(blobOut, method.getValue());
+                writeString(out, method.getKey());
+                out.writeInt(offset);
+                out.writeInt(blobs.size() - offset);
+            }
+        }
+        out.flush();
+        blobOut.flush();
+
+        File tmp = File.createTempFile("code", ".tmp", file.getAbsoluteFile().getParentFile());
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE)) {
+            ch.write(ByteBuffer.wrap(contents.toByteArray()));
+            ch.write(ByteBuffer.wrap(blobs.toByteArray()));
+        }
+        // The old file stays mapped (and valid) until the process exits
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void copyRange(DataOutputStream out, int[] range) throws IOException {
+        ByteBuffer buf = data.duplicate();
+        buf.position(range[0]);
+        byte[] bytes = new byte[range[1]];
+        buf.get(bytes);
+        out.write(bytes);
+    }
+
+    /* Decoded method format */
+
+    private static void writeMethod(DataOutputStream out, Method method) throws IOException {
+        writeString(out, method.name);
+        out.writeInt(method.registers);
+        out.writeInt(method.labels.size());
+        for (Map.Entry<String, Integer> label : method.labels.entrySet()) {
+            writeString(out, label.getKey());
+            out.writeInt(label.getValue());
+        }
+        out.writeInt(method.code.length);
+        for (Instruction insn : method.code) {
+            out.writeShort(insn.opcode.ordinal());
+            out.writeInt(insn.lineOffset);
+            out.writeInt(insn.lineLength);
+            out.writeInt(insn.a);
+            out.writeInt(insn.b);
+            out.writeInt(insn.c);
+            out.writeLong(insn.literal);
+            writeString(out, insn.ref);
+            writeInts(out, insn.regs);
+            out.writeInt(insn.target);
+            writeInts(out, insn.targets);
+            writeInts(out, insn.keys);
+            if (insn.data instanceof long[]) {
+                out.writeByte(2);
+                long[] values = (long[]) insn.data;
+                out.writeInt(values.length);
+                for (long value : values) out.writeLong(value);
+            } else if (insn.data instanceof int[]) {
+                out.writeByte(1);
+                writeInts(out, (int[]) insn.data);
+            } else {
+                out.writeByte(0);
+            }
+        }
+    }
+
+    /**
+     * Read a method saved by {@link #writeMethod}. Source lines are saved
+     * as their place in the body, and read from the lexer's source again.
+     */
+    private static Method readMethod(ByteBuffer buf, SmaliLexer lex, int bodyStart) {
+        String name = readString(buf);
+        int registers = buf.getInt();
+        int labelCount = buf.getInt();
+        Map<String, Integer> labels = new HashMap<>();
+        for (int i = 0; i < labelCount; i++) labels.put(readString(buf), buf.getInt());
+        Instruction[] code = new Instruction[buf.getInt()];
+        for (int pc = 0; pc < code.length; pc++) {
+            Opcode opcode = OPCODES[buf.getShort()];
+            int lineOffset = buf.getInt(), lineLength = buf.getInt();
+            int lineStart = bodyStart + lineOffset;
+            Instruction insn = new Instruction(opcode, null, lex.text(lineStart, lineStart + lineLength));
+            insn.lineOffset = lineOffset;
+            insn.lineLength = lineLength;
+            insn.a = buf.getInt();
+            insn.b = buf.getInt();
+            insn.c = buf.getInt();
+            insn.literal = buf.getLong();
+            insn.ref = readString(buf);
+            insn.regs = readInts(buf);
+            insn.target = buf.getInt();
+            insn.targets = readInts(buf);
+            insn.keys = readInts(buf);
+            switch (buf.get()) {
+                case 1:
+                    insn.data = readInts(buf);
+                    break;
+                case 2:
+                    long[] values = new long[buf.getInt()];
+                    for (int i = 0; i < values.length; i++) values[i] = buf.getLong();
+                    insn.data = values;
+                    break;
+            }
+            code[pc] = insn;
+        }
+        return new Method(name, registers, code, labels);
+    }
+
+    /** Strings are written as UTF-16, decoded literals may have unpaired surrogates. */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(s.length());
+        out.writeChars(s);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0) return null;
+        char[] chars = new char[length];
+        buf.asCharBuffer().get(chars);
+        buf.position(buf.position() + length * 2);
+        return new String(chars);
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        if (values == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(values.length);
+        for (int value : values) out.writeInt(value);
+    }
+
+    private static int[] readInts(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0) return null;
+        int[] values = new int[length];
+        for (int i = 0; i < length; i++) values[i] = buf.getInt();
+        return values;
+    }
+
+}
@@ -0,0 +1,132 @@
+package quickvm;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decoded methods of a class path, shared by every VM using it. Methods
+ * with the same body (same signature and smali, as obfuscators stamp the
+ * same routine into many classes) are decoded and compiled only once.
+ * Bodies are kept within a byte budget, evicting the least recently
+ * resolved ones: an evicted method is decoded again when next resolved,
+ * and call sites that cached it resolve it again on their next call.
+ */
+public class CodeStore {
+
+    /** A decoded body, and the methods sharing it. */
+    private static class Entry {
+        final Method method;
+        final long bytes;
+        final List<ClassDef.MethodDef> users = new ArrayList<>();
+
+        Entry(Method method) {
+            this.method = method;
+            this.bytes = sizeOf(method);
+        }
+    }
+
+    /** Bytes the decoded bodies may take, 0 for no limit. */
+    long budget;
+
+    /** Bodies by content hash, least recently resolved first. */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long bytes;
+
+    /** Resolutions found decoded, found sharing another method's body, and decoded. */
+    long hits, shared, misses;
+
+    long evictions;
+
+    /**
+     * The decoded method, if it or a method with the same body is stored.
+     * Marks it as recently used.
+     */
+    synchronized Method get(ClassDef cls, ClassDef.MethodDef def, String name) {
+        Method method = def.decoded;
+        if (def.bodyHash == null) def.bodyHash = bodyHash(cls, def);
+        Entry entry = entries.get(def.bodyHash);
+        if (method != null && entry != null) {
+            hits++;
+            return method;
+        }
+        if (entry == null) return null;
+        shared++;
+        method = new Method(name, entry.method);
+        entry.users.add(def);
+        def.decoded = method;
+        return method;
+    }
+
+    /** Store a method just decoded, evicting others if over budget. */
+    synchronized Method put(ClassDef cls, ClassDef.MethodDef def, Method method) {
+        // Another thread may have stored it meanwhile
+        Method stored = get(cls, def, method.name);
+        if (stored != null) return stored;
+        misses++;
+        Entry entry = new Entry(method);
+        entry.users.add(def);
+        entries.put(def.bodyHash, entry);
+        def.decoded = method;
+        bytes += entry.bytes;
+
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (budget > 0 && bytes > budget && entries.size() > 1) {
+            Entry evicted = eldest.next();
+            if (evicted == entry) continue;
+            eldest.remove();
+            bytes -= evicted.bytes;
+            evictions++;
+            evicted.method.evicted = true;
+            for (ClassDef.MethodDef user : evicted.users) user.decoded = null;
+        }
+        return method;
+    }
+
+    /** Hash of the signature and smali of a method. */
+    private static String bodyHash(ClassDef cls, ClassDef.MethodDef def) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        // Parameter registers depend on the signature, so it's part of the body
+        md.update(((def.isStatic ? "static " : "") + def.signature + "\n").getBytes(StandardCharsets.UTF_8));
+        ByteBuffer body = cls.source.duplicate();
+        body.limit(def.end).position(def.start);
+        md.update(body);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : md.digest()) sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+
+    /** Rough heap footprint of a decoded method. */
+    static long sizeOf(Method method) {
+        long size = 64 + 48 * method.labels.size();
+        for (Instruction insn : method.code) {
+            size += 96 + 2 * insn.line.length();
+            if (insn.ref != null) size += 40 + 2 * insn.ref.length();
+            if (insn.regs != null) size += 16 + 4 * insn.regs.length;
+            if (insn.targets != null) size += 16 + 4 * insn.targets.length;
+            if (insn.keys != null) size += 16 + 4 * insn.keys.length;
+            if (insn.data instanceof int[]) size += 16 + 4 * ((int[]) insn.data).length;
+            if (insn.data instanceof long[]) size += 16 + 8 * ((long[]) insn.data).length;
+        }
+        return size;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Code: %d methods resolved, %d decoded, %d sharing a body; %d bodies in %.1f KB, %d evicted",
+                hits + shared + misses, misses, shared, entries.size(), bytes / 1024.0, evictions);
+    }
+
+}
@@ -0,0 +1,403 @@
+package quickvm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import quickvm.util.SmaliLexer;
+import static quickvm.util.SmaliLexer.*;
+
+/**
+ * Turns the text of a method body into a {@link Method}. This is the only
+ * place where smali instructions get lexed, everything after works with
+ * the decoded form.
+ */
+public class Decoder {
+
+    private final SmaliLexer lex;
+
+    /** End offset of the last token read on the current line. */
+    private int lineEnd;
+
+    private Decoder(SmaliLexer lex) {
+        this.lex = lex;
+    }
+
+    /**
+     * Decode a method body.
+     * @param name full method name
+     * @param isStatic whether the method has no implicit {@code this}
+     * @param lex lexer over the text between the {@code .method} and {@code .end method} directives
+     */
+    public static Method decode(String name, boolean isStatic, SmaliLexer lex) {
+        return new Decoder(lex).decode(name, isStatic);
+    }
+
+    private Method decode(String name, boolean isStatic) {
+        List<Instruction> code = new ArrayList<>();
+        Map<String, Integer> labels = new HashMap<>();
+        int registers = -1;
+        int bodyStart = lex.position();
+
+        while (lex.next() != EOF) {
+            if (lex.type() == NEWLINE) continue;
+            if (lex.type() != WORD)
+                throw new IllegalArgumentException("Malformed syntax: " + lex.text());
+            int lineStart = lex.start();
+
+            // Labels point to the next instruction
+            if (lex.first() == ':') {
+                labels.put(lex.text(lineStart + 1, lex.end()), code.size());
+                lex.skipLine();
+                continue;
+            }
+
+            if (lex.is(".locals") || lex.is(".registers")) {
+                boolean locals = lex.is(".locals");
+                lex.next();
+                registers = Integer.parseInt(lex.text());
+                if (locals) registers += parameterRegisters(name, isStatic);
+                lex.skipLine();
+                continue;
+            }
+
+            // Debug info, and catch blocks (we don't have exceptions)
+            if (lex.is(".catch") || lex.is(".catchall") || lex.is(".line") || lex.is(".prologue") || lex.is(".epilogue") || lex.is(".source")
+                    || lex.is(".local") || lex.is(".end") || lex.is(".restart") || lex.is(".param")) {
+                lex.skipLine();
+                continue;
+            }
+            if (lex.is(".annotation")) {
+                skipBlock("annotation");
+                continue;
+            }
+
+            // Payloads: collect every entry as an operand
+            if (lex.is(".packed-switch") || lex.is(".sparse-switch") || lex.is(".array-data")) {
+                Opcode opcode = Opcode.forMnemonic(lex.text());
+                List<String> entries = new ArrayList<>();
+                entries.add(readRestOfLine());
+                String line = lex.text(lineStart, lineEnd);
+                int lineLength = lineEnd - lineStart;
+                while (true) {
+                    if (lex.next() == NEWLINE) continue;
+                    if (lex.type() == EOF) throw new IllegalArgumentException("Unexpected end of method");
+                    if (lex.is(".end")) {
+                        lex.skipLine();
+                        break;
+                    }
+                    int entryStart = lex.start();
+                    readRestOfLine();
+                    entries.add(lex.text(entryStart, lineEnd));
+                }
+                code.add(located(new Instruction(opcode, entries.toArray(new String[entries.size()]), line), lineStart - bodyStart, lineLength));
+                continue;
+            }
+
+            Opcode opcode = Opcode.forMnemonic(lex.text());
+            String[] args = readOperands();
+            String line = lex.text(lineStart, lineEnd);
+            if (opcode == null)
+                throw new IllegalArgumentException("Unknown opcode: " + line);
+            code.add(located(new Instruction(opcode, args, line), lineStart - bodyStart, lineEnd - lineStart));
+        }
+
+        if (registers < 0)
+            throw new IllegalArgumentException("Expected .locals or .registers");
+        Method method = new Method(name, registers, code.toArray(new Instruction[code.size()]), labels);
+        int parameterBase = registers - parameterRegisters(name, isStatic);
+        for (Instruction insn : method.code) {
+            try {
+                resolveOperands(insn, parameterBase);
+            } catch (RuntimeException ex) {
+                throw new IllegalArgumentException("Malformed syntax: " + insn.line, ex);
+            }
+            resolveLabels(method, insn);
+        }
+        for (Instruction insn : method.code) linkPayload(method, insn);
+        return method;
+    }
+
+    /**
+     * Read operands up to the end of line, splitting them at commas
+     * (except those inside register lists).
+     */
+    private String[] readOperands() {
+        List<String> result = new ArrayList<>();
+        lineEnd = lex.end();
+        int depth = 0, start = -1;
+        while (lex.next() != NEWLINE && lex.type() != EOF) {
+            switch (lex.type()) {
+                case LBRACE: depth++; break;
+                case RBRACE: depth--; break;
+                case COMMA:
+                    if (depth == 0) {
+                        result.add(start < 0 ? "" : lex.text(start, lineEnd));
+                        start = -1;
+                        continue;
+                    }
+            }
+            if (start < 0) start = lex.start();
+            lineEnd = lex.end();
+        }
+        if (start >= 0 || !result.isEmpty())
+            result.add(start < 0 ? "" : lex.text(start, lineEnd));
+        return result.toArray(new String[result.size()]);
+    }
+
+    private static Instruction located(Instruction insn, int offset, int length) {
+        insn.lineOffset = offset;
+        insn.lineLength = length;
+        return insn;
+    }
+
+    /** Text of the rest of the line, from the next token on. */
+    private String readRestOfLine() {
+        lineEnd = lex.end();
+        int start = -1;
+        while (lex.next() != NEWLINE && lex.type() != EOF) {
+            if (start < 0) start = lex.start();
+            lineEnd = lex.end();
+        }
+        return start < 0 ? "" : lex.text(start, lineEnd);
+    }
+
+    /** Skip lines until {@code .end <kind>}. */
+    private void skipBlock(String kind) {
+        lex.skipLine();
+        while (true) {
+            if (lex.next() == EOF) throw new IllegalArgumentException("Unexpected end of method");
+            if (lex.is(".end") && lex.next() == WORD && lex.is(kind)) break;
+            lex.skipLine();
+        }
+        lex.skipLine();
+    }
+
+    /** Parse the operands according to the instruction format. */
+    private static void resolveOperands(Instruction insn, int parameterBase) {
+        String[] args = insn.args;
+        switch (insn.opcode.format) {
+            case Format10x:
+            case Format10t:
+            case Format20t:
+            case Format30t:
+                return;
+
+            case PackedSwitchPayload:
+                insn.literal = Ops.parseIntegerLiteral(args[0]);
+                return;
+
+            case SparseSwitchPayload:
+                insn.keys = new int[args.length - 1];
+                for (int i = 1; i < args.length; i++)
+                    insn.keys[i-1] = (int) Ops.parseIntegerLiteral(args[i].split("->", 2)[0].trim());
+                return;
+
+            case ArrayPayload: {
+                int width = Integer.parseInt(args[0]);
+                if (width == 8) {
+                    long[] data = new long[args.length - 1];
+                    for (int i = 1; i < args.length; i++) data[i-1] = parseArrayElement(args[i], width);
+                    insn.data = data;
+                } else {
+                    int[] data = new int[args.length - 1];
+                    for (int i = 1; i < args.length; i++) data[i-1] = (int) parseArrayElement(args[i], width);
+                    insn.data = data;
+                }
+                return;
+            }
+
+            case Format11x:
+            case Format21t:
+            case Format31t:
+                insn.a = parseRegister(args[0], parameterBase);
+                return;
+
+            case Format12x:
+            case Format22x:
+            case Format32x:
+                insn.a = parseRegister(args[0], parameterBase);
+                insn.b = parseRegister(args[1], parameterBase);
+                if (insn.opcode.mnemonic.endsWith("/2addr")) {
+                    insn.c = insn.b;
+                    insn.b = insn.a;
+                }
+                return;
+
+            case Format22t:
+            case Format23x:
+                insn.a = parseRegister(args[0], parameterBase);
+                insn.b = parseRegister(args[1], parameterBase);
+                if (insn.opcode.format == Opcode.Format.Format23x)
+                    insn.c = parseRegister(args[2], parameterBase);
+                return;
+
+            case Format11n:
+            case Format21s:
+            case Format21h:
+            case Format31i:
+            case Format51l:
+                insn.a = parseRegister(args[0], parameterBase);
+                insn.literal = Ops.parseIntegerLiteral(args[1]);
+                return;
+
+            case Format21c:
+            case Format31c:
+                insn.a = parseRegister(args[0], parameterBase);
+                if (insn.opcode == Opcode.CONST_STRING || insn.opcode == Opcode.CONST_STRING_JUMBO)
+                    insn.ref = Ops.parseStringLiteral(args[1]);
+                else
+                    insn.ref = args[1];
+                return;
+
+            case Format22b:
+            case Format22s:
+            case Format22c:
+                insn.a = parseRegister(args[0], parameterBase);
+                insn.b = parseRegister(args[1], parameterBase);
+                if (insn.opcode.format == Opcode.Format.Format22c)
+                    insn.ref = args[2];
+                else
+                    insn.literal = Ops.parseIntegerLiteral(args[2]);
+                return;
+
+            case Format35c:
+            case Format3rc:
+            case Format45cc:
+            case Format4rcc:
+                insn.regs = parseRegisterList(args[0], parameterBase);
+                insn.ref = args[1];
+                return;
+        }
+        throw new IllegalStateException("Unhandled format: " + insn.opcode.format);
+    }
+
+    /** Parse an array payload element, which may be a floating point literal. */
+    static long parseArrayElement(String str, int width) {
+        if (str.matches("[-+]?(0x[0-9a-fA-F]+|[0-9]+)[tTsSlL]?"))
+            return Ops.parseIntegerLiteral(str);
+        if (width == 4)
+            return Float.floatToRawIntBits(Float.parseFloat(str));
+        return Double.doubleToRawLongBits(Double.parseDouble(str));
+    }
+
+    /**
+     * Copy the decoded payload into the instruction referencing it,
+     * so executing it doesn't need to look at the payload.
+     */
+    private static void linkPayload(Method method, Instruction insn) {
+        Opcode expected;
+        switch (insn.opcode) {
+            case PACKED_SWITCH: expected = Opcode.PACKED_SWITCH_PAYLOAD; break;
+            case SPARSE_SWITCH: expected = Opcode.SPARSE_SWITCH_PAYLOAD; break;
+            case FILL_ARRAY_DATA: expected = Opcode.ARRAY_PAYLOAD; break;
+            default: return;
+        }
+        Instruction payload = method.code[insn.target];
+        if (payload.opcode != expected)
+            throw new IllegalArgumentException("Malformed syntax, expected " + expected + ": " + payload);
+
+        insn.literal = payload.literal;
+        insn.data = payload.data;
+        if (payload.keys == null) {
+            insn.targets = payload.targets;
+            return;
+        }
+
+        // Dalvik wants sparse keys sorted already, but make sure
+        Integer[] order = new Integer[payload.keys.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        final int[] keys = payload.keys;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(keys[a], keys[b]);
+            }
+        });
+        insn.keys = new int[order.length];
+        insn.targets = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            insn.keys[i] = keys[order[i]];
+            insn.targets[i] = payload.targets[order[i]];
+        }
+    }
+
+    /** Absolute index of a register (vN or pN). */
+    static int parseRegister(String reg, int parameterBase) {
+        if (reg.startsWith("v"))
+            return Integer.parseInt(reg.substring(1));
+        if (reg.startsWith("p"))
+            return Integer.parseInt(reg.substring(1)) + parameterBase;
+        throw new IllegalArgumentException("Invalid register string: "+reg);
+    }
+
+    /** Parse a register list, either {vA, vB...} or {vA .. vB}. */
+    static int[] parseRegisterList(String str, int parameterBase) {
+        if (!str.startsWith("{") || !str.endsWith("}"))
+            throw new IllegalArgumentException("Malformed register list: "+str);
+        str = str.substring(1, str.length()-1).trim();
+        if (str.isEmpty()) return new int[0];
+
+        if (str.contains("..")) {
+            String[] range = str.split("\\.\\.", 2);
+            int first = parseRegister(range[0].trim(), parameterBase);
+            int last = parseRegister(range[1].trim(), parameterBase);
+            int[] regs = new int[last - first + 1];
+            for (int i = 0; i < regs.length; i++) regs[i] = first + i;
+            return regs;
+        }
+        String[] regsStr = str.split(",");
+        int[] regs = new int[regsStr.length];
+        for (int i = 0; i < regs.length; i++) regs[i] = parseRegister(regsStr[i].trim(), parameterBase);
+        return regs;
+    }
+
+    private static void resolveLabels(Method method, Instruction insn) {
+        switch (insn.opcode) {
+            case PACKED_SWITCH_PAYLOAD:
+                insn.targets = new int[insn.args.length - 1];
+                for (int i = 1; i < insn.args.length; i++)
+                    insn.targets[i-1] = method.getLabel(labelName(insn.args[i]));
+                return;
+            case SPARSE_SWITCH_PAYLOAD:
+                insn.targets = new int[insn.args.length - 1];
+                for (int i = 1; i < insn.args.length; i++)
+                    insn.targets[i-1] = method.getLabel(labelName(insn.args[i].split("->", 2)[1].trim()));
+                return;
+            case ARRAY_PAYLOAD:
+                return;
+        }
+
+        // Branches, payload references and catch handlers have the label last
+        if (insn.args.length > 0) {
+            String last = insn.args[insn.args.length - 1];
+            if (last.startsWith(":")) insn.target = method.getLabel(labelName(last));
+        }
+    }
+
+    private static String labelName(String label) {
+        if (!label.startsWith(":")) throw new IllegalArgumentException("Malformed syntax, expected label: " + label);
+        return label.substring(1);
+    }
+
+    /**
+     * Number of registers taken by the parameters (including {@code this}),
+     * as found in the method descriptor.
+     */
+    static int parameterRegisters(String name, boolean isStatic) {
+        int count = isStatic ? 0 : 1;
+        int i = name.indexOf('(') + 1;
+        while (name.charAt(i) != ')') {
+            char c = name.charAt(i);
+            if (c == 'J' || c == 'D') count++;
+            count++;
+            while (name.charAt(i) == '[') i++;
+            if (name.charAt(i) == 'L') i = name.indexOf(';', i);
+            i++;
+        }
+        return count;
+    }
+
+}
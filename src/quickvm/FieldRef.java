@@ -0,0 +1,45 @@
+package quickvm;
+
+/**
+ * Field reference, resolved against the class path when its method is
+ * decoded: static fields to a slot in the static field array of their
+ * class, instance fields to a slot in the layout of their class (and
+ * every subclass). References to fields of classes not in the class path
+ * stay unresolved, and the VM keeps those by name.
+ */
+public class FieldRef {
+
+    /** Full reference (i.e. "Lfoo/Bar;->z:Ljava/lang/String;"). */
+    final String name;
+
+    /** Type descriptor of the field. */
+    final String type;
+
+    /** Class declaring the field, null if unresolved. */
+    final ClassDef owner;
+
+    final boolean isStatic;
+
+    /** Slot in the static array or instance layout of the owner. */
+    final int slot;
+
+    public FieldRef(String name, ClassDef owner, boolean isStatic, int slot) {
+        this.name = name;
+        this.type = name.split(":", 2)[1];
+        this.owner = owner;
+        this.isStatic = isStatic;
+        this.slot = slot;
+    }
+
+    /** Whether instances of the given class (laid out) have a slot for this field. */
+    public boolean isIn(ClassDef cls) {
+        return owner != null && cls != null && !isStatic
+                && cls.depth >= owner.depth && cls.ancestors[owner.depth] == owner;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
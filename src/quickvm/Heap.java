@@ -0,0 +1,184 @@
+package quickvm;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import quickvm.util.HandleMap;
+import quickvm.util.IntList;
+
+/**
+ * The VM heap: objects by handle, handle 0 being null. Garbage is found
+ * by mark and sweep, and the handles of collected objects are reused.
+ *
+ * Registers and fields aren't typed, so any int in them that happens to
+ * be the handle of an object keeps it alive (conservative marking).
+ *
+ * A heap forked from a {@link Snapshot} starts with the handles of the
+ * snapshot reserved, and copies each base object the first time its
+ * handle is looked up.
+ *
+ * Also hashes and compares objects for the VM collections: strings by
+ * content, anything else by identity.
+ */
+public class Heap implements HandleMap.Hasher {
+
+    private VMObject[] objects = new VMObject[1024];
+
+    /** First handle never used. */
+    private int top = 1;
+
+    /** Handles of collected objects, ready for reuse. */
+    private int[] free = new int[64];
+    private int freeCount;
+
+    /** Pending handles while marking. */
+    private int[] grey = new int[64];
+    private int greyCount;
+    private BitSet marked;
+
+    /** Objects of the snapshot this heap was forked from, null if none. */
+    private VMObject[] base;
+    private int baseTop;
+
+    /** VM base objects are copied for. */
+    private QuickVM owner;
+
+    public VMObject get(int handle) {
+        VMObject obj = objects[handle];
+        if (obj == null && handle < baseTop && base[handle] != null)
+            obj = objects[handle] = base[handle].copyFor(owner);
+        return obj;
+    }
+
+    /** Start over from the objects of a snapshot. */
+    public void fork(QuickVM vm, Snapshot snapshot) {
+        clear();
+        owner = vm;
+        base = snapshot.objects;
+        baseTop = base.length;
+        if (objects.length <= baseTop) objects = new VMObject[Integer.highestOneBit(baseTop) * 2];
+        top = Math.max(1, baseTop);
+    }
+
+    /** All objects by handle, for a snapshot. Base objects are copied first. */
+    VMObject[] objects() {
+        for (int handle = 1; handle < baseTop; handle++) get(handle);
+        return Arrays.copyOf(objects, top);
+    }
+
+    public int allocate(VMObject obj) {
+        int handle;
+        if (freeCount > 0) {
+            handle = free[--freeCount];
+        } else {
+            if (top == objects.length) objects = Arrays.copyOf(objects, top * 2);
+            handle = top++;
+        }
+        objects[handle] = obj;
+        return handle;
+    }
+
+    @Override
+    public int hash(int handle) {
+        VMObject obj = get(handle);
+        if (obj instanceof VMObject.StringObject) {
+            // Null until its constructor runs
+            String value = ((VMObject.StringObject) obj).value;
+            return value != null ? value.hashCode() : 0;
+        }
+        return handle;
+    }
+
+    @Override
+    public boolean same(int a, int b) {
+        if (a == b) return true;
+        VMObject objA = get(a), objB = get(b);
+        if (!(objA instanceof VMObject.StringObject) || !(objB instanceof VMObject.StringObject)) return false;
+        String valueA = ((VMObject.StringObject) objA).value, valueB = ((VMObject.StringObject) objB).value;
+        return valueA == null ? valueB == null : valueA.equals(valueB);
+    }
+
+    /** Number of objects in the heap. */
+    public int size() {
+        return top - 1 - freeCount;
+    }
+
+    public void clear() {
+        Arrays.fill(objects, 0, top, null);
+        top = 1;
+        freeCount = 0;
+        base = null;
+        baseTop = 0;
+        owner = null;
+    }
+
+    /**
+     * Collect objects not reachable from the VM's frames, static fields,
+     * string pool or return register. Must be called at a safepoint, when
+     * registers are in the frames. Returns the number of objects freed.
+     */
+    public int collect(QuickVM vm) {
+        marked = new BitSet(top);
+        // Base objects aren't freed: any of them may be reachable from a base object not copied yet
+        for (int handle = 1; handle < baseTop; handle++) mark(handle);
+        for (QuickVM.Frame f : vm.stack)
+            for (int value : f.locals) mark(value);
+        for (int[] values : vm.statics)
+            if (values != null)
+                for (int value : values) mark(value);
+        for (int value : vm.staticFields.values()) mark(value);
+        for (int value : vm.strings.values()) mark(value);
+        mark(vm.returnValue);
+
+        while (greyCount > 0) trace(objects[grey[--greyCount]]);
+
+        int freed = 0;
+        for (int handle = 1; handle < top; handle++) {
+            if (objects[handle] == null || marked.get(handle)) continue;
+            objects[handle] = null;
+            if (freeCount == free.length) free = Arrays.copyOf(free, freeCount * 2);
+            free[freeCount++] = handle;
+            freed++;
+        }
+        marked = null;
+        return freed;
+    }
+
+    private void mark(int handle) {
+        if (handle <= 0 || handle >= top || objects[handle] == null || marked.get(handle)) return;
+        marked.set(handle);
+        if (greyCount == grey.length) grey = Arrays.copyOf(grey, greyCount * 2);
+        grey[greyCount++] = handle;
+    }
+
+    private void mark(Iterable<Integer> handles) {
+        for (Integer handle : handles)
+            if (handle != null) mark(handle);
+    }
+
+    private void trace(VMObject obj) {
+        if (obj instanceof VMObject.VirtualObject) {
+            VMObject.VirtualObject vObj = (VMObject.VirtualObject) obj;
+            for (int value : vObj.slots) mark(value);
+            if (vObj.fields != null) mark(vObj.fields.values());
+        } else if (obj instanceof VMObject.RefArrayObject) {
+            for (int value : ((VMObject.RefArrayObject) obj).value) mark(value);
+        } else if (obj instanceof VMObject.ArrayListObject) {
+            IntList list = ((VMObject.ArrayListObject) obj).value;
+            if (list != null)
+                for (int i = 0; i < list.size(); i++) mark(list.get(i));
+        } else if (obj instanceof VMObject.HashSetObject) {
+            HandleMap set = ((VMObject.HashSetObject) obj).value;
+            if (set != null)
+                for (int i = 0; i < set.size(); i++) mark(set.keyAt(i));
+        } else if (obj instanceof VMObject.HashMapObject) {
+            HandleMap map = ((VMObject.HashMapObject) obj).value;
+            if (map != null) {
+                for (int i = 0; i < map.size(); i++) {
+                    mark(map.keyAt(i));
+                    mark(map.valueAt(i));
+                }
+            }
+        }
+    }
+
+}
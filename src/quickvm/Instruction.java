@@ -0,0 +1,87 @@
+package quickvm;
+
+/**
+ * Decoded instruction. Operands are resolved once when the method is
+ * loaded: registers become absolute indices into the frame's locals,
+ * literals are parsed and label operands become program counters.
+ * Handlers never have to look at the source text again.
+ */
+public class Instruction {
+
+    final Opcode opcode;
+
+    /**
+     * Raw operands, split at top-level commas and trimmed. Only used while
+     * decoding, null for methods loaded from the {@link CodeCache}.
+     */
+    final String[] args;
+
+    /** Source line, for diagnostics only. */
+    final String line;
+
+    /**
+     * Byte offset of the source line from the start of the method body,
+     * and its length, so the {@link CodeCache} can find it again.
+     */
+    int lineOffset, lineLength;
+
+    /**
+     * Register operands, in order. For /2addr instructions the destination
+     * is repeated, so they look like their three-register counterparts.
+     */
+    int a, b, c;
+
+    /** Literal operand. */
+    long literal;
+
+    /** Reference operand: string literal (unescaped), type, field or method. */
+    String ref;
+
+    /** Resolved field of field access instructions. */
+    FieldRef field;
+
+    /** Class of new-instance, laid out, or null if not in the class path. */
+    ClassDef cls;
+
+    /**
+     * Target of invoke instructions, resolved on first execution: either a
+     * native handler or a decoded method. Handlers don't keep state, so
+     * VMs sharing the instruction can share them too.
+     */
+    volatile QuickVM.MethodHandler handler;
+    volatile Method method;
+
+    /** Register list of invoke and filled-new-array instructions. */
+    int[] regs;
+
+    /** Program counter of the label operand (branch target or payload), -1 if none. */
+    int target = -1;
+
+    /**
+     * Jump table of switch instructions (and their payloads). For packed
+     * switches it's indexed by the value minus the first key (stored as the
+     * literal); for sparse ones it's parallel to {@link #keys}.
+     */
+    int[] targets;
+
+    /** Sorted keys of sparse switch instructions (and their payloads). */
+    int[] keys;
+
+    /**
+     * Decoded elements of fill-array-data instructions (and array payloads),
+     * ready to be copied into the array: int[] or long[], depending on width.
+     */
+    Object data;
+
+    public Instruction(Opcode opcode, String[] args, String line) {
+        this.opcode = opcode;
+        this.args = args;
+        this.line = line;
+    }
+
+    @Override
+    public String toString() {
+        return line;
+    }
+
+}
@@ -0,0 +1,93 @@
+package quickvm;
+
+import java.util.Map;
+
+/**
+ * Decoded method body, ready to be executed by program counter.
+ * Never modified after decoding, except for attaching compiled code
+ * and profiling counters. Methods are shared by VMs on different
+ * threads; counters may lose updates, which is fine for heuristics.
+ */
+public class Method {
+
+    /** Full method name (i.e. "Lfoo/Bar;->baz(I)V"). */
+    final String name;
+
+    /** Name of the declaring class (i.e. "foo/Bar"). */
+    final String className;
+
+    /** Whether this is a static constructor. */
+    final boolean isClinit;
+
+    /** Number of registers (locals + parameters). */
+    final int registers;
+
+    /** Decoded instructions, payloads included. */
+    final Instruction[] code;
+
+    /** Label name (without colon) to program counter. */
+    final Map<String, Integer> labels;
+
+    /**
+     * Method whose decoded body (and compiled code) this one shares,
+     * itself if none. See {@link CodeStore}.
+     */
+    final Method original;
+
+    /** Closure-compiled code, null until compiled. */
+    volatile ClosureCompiler.Node[] closures;
+
+    /** JVM-compiled code, null until compiled. */
+    volatile BytecodeCompiler.Compiled compiled;
+
+    /** Times invoked while not compiled. */
+    int invocations;
+
+    /** Backward branches taken by the interpreter. */
+    int backEdges;
+
+    /** Set if compiling to JVM bytecode failed, so it's not retried. */
+    boolean uncompilable;
+
+    /**
+     * Set on the original once {@link CodeStore} drops the body, so call
+     * sites resolve the method again instead of keeping it alive.
+     */
+    volatile boolean evicted;
+
+    public Method(String name, int registers, Instruction[] code, Map<String, Integer> labels) {
+        this.name = name;
+        this.className = name.substring(1, name.indexOf(';'));
+        this.isClinit = name.endsWith(";-><clinit>()V");
+        this.registers = registers;
+        this.code = code;
+        this.labels = labels;
+        this.original = this;
+    }
+
+    /** Method with the same body as another one, under a different name. */
+    Method(String name, Method original) {
+        this.name = name;
+        this.className = name.substring(1, name.indexOf(';'));
+        this.isClinit = name.endsWith(";-><clinit>()V");
+        this.registers = original.registers;
+        this.code = original.code;
+        this.labels = original.labels;
+        this.original = original;
+        this.closures = original.closures;
+        this.compiled = original.compiled;
+        this.uncompilable = original.uncompilable;
+    }
+
+    public int getLabel(String label) {
+        Integer pc = labels.get(label);
+        if (pc == null) throw new IllegalArgumentException("Label not found: :" + label);
+        return pc;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
@@ -6,10 +6,9 @@
 package quickvm;
 
 import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
+import quickvm.util.HandleMap;
+import quickvm.util.IntList;
 
 /**
  *
@@ -28,7 +27,7 @@ public class Methods {
             @Override
             public void handle(QuickVM vm, int[] params) {
                 VMObject.ArrayObject arr = (VMObject.ArrayObject) vm.heap.get(params[0]);
-                vm.returnValue = vm.allocateObject(new VMObject.ArrayObject(vm, arr.type, arr.value.clone()));
+                vm.returnValue = vm.allocateObject(arr.copy());
             }
         });
         
@@ -46,19 +45,15 @@ public class Methods {
             public void handle(QuickVM vm, int[] params) {
                 int[] locals = vm.stack.peek().locals;
                 VMObject.StringObject str = (VMObject.StringObject) vm.heap.get(params[0]);
-                VMObject.ArrayObject arr = (VMObject.ArrayObject) vm.heap.get(params[1]);
-                char[] characters = new char[arr.value.length];
-                for (int i = 0; i < characters.length; i++)
-                    characters[i] = (char) arr.value[i];
-                str.value = new String(characters);
+                VMObject.CharArrayObject arr = (VMObject.CharArrayObject) vm.heap.get(params[1]);
+                str.value = new String(arr.value);
             }
         });
         
         handlers.put("Ljava/lang/String;->intern()Ljava/lang/String;", new QuickVM.MethodHandler() {
             @Override
             public void handle(QuickVM vm, int[] params) {
-                // FIXME: yeah, right... we don't have a GC and you're asking me to recycle references...
-                vm.returnValue = params[0];
+                vm.returnValue = vm.intern(params[0]);
             }
         });
         
@@ -83,10 +78,7 @@ public class Methods {
             public void handle(QuickVM vm, int[] params) {
                 int[] locals = vm.stack.peek().locals;
                 VMObject.StringObject str = (VMObject.StringObject) vm.heap.get(params[0]);
-                int[] characters = new int[str.value.length()];
-                for (int i = 0; i < characters.length; i++)
-                    characters[i] = str.value.charAt(i); //FIXME: probably not what we want if char is negative, we shouldn't extend sign
-                vm.returnValue = vm.allocateObject(new VMObject.ArrayObject(vm, "[C", characters));
+                vm.returnValue = vm.allocateObject(new VMObject.CharArrayObject(vm, "[C", str.value.toCharArray()));
             }
         });
         
@@ -95,11 +87,7 @@ public class Methods {
             public void handle(QuickVM vm, int[] params) {
                 int[] locals = vm.stack.peek().locals;
                 VMObject.StringObject str = (VMObject.StringObject) vm.heap.get(params[0]);
-                byte[] bytes = str.value.getBytes();
-                int[] result = new int[bytes.length];
-                for (int i = 0; i < result.length; i++)
-                    result[i] = bytes[i]; //FIXME: probably not what we want if char is negative, we shouldn't extend sign
-                vm.returnValue = vm.allocateObject(new VMObject.ArrayObject(vm, "[B", result));
+                vm.returnValue = vm.allocateObject(new VMObject.ByteArrayObject(vm, "[B", str.value.getBytes()));
             }
         });
         
@@ -115,10 +103,7 @@ public class Methods {
                 } catch (UnsupportedEncodingException ex) {
                     throw new IllegalStateException("Unsupported enconding requested: " + arg.value);
                 }
-                int[] result = new int[bytes.length];
-                for (int i = 0; i < result.length; i++)
-                    result[i] = bytes[i]; //FIXME: probably not what we want if char is negative, we shouldn't extend sign
-                vm.returnValue = vm.allocateObject(new VMObject.ArrayObject(vm, "[B", result));
+                vm.returnValue = vm.allocateObject(new VMObject.ByteArrayObject(vm, "[B", bytes));
             }
         });
         
@@ -204,7 +189,7 @@ public class Methods {
             @Override
             public void handle(QuickVM vm, int[] params) {
                 VMObject.ArrayListObject alObj = (VMObject.ArrayListObject) vm.heap.get(params[0]);
-                alObj.value = new ArrayList<>();
+                alObj.value = new IntList();
             }
         });
         
@@ -227,10 +212,10 @@ public class Methods {
         handlers.put("Ljava/util/Arrays;->asList([Ljava/lang/Object;)Ljava/util/List;", new QuickVM.MethodHandler() {
             @Override
             public void handle(QuickVM vm, int[] params) {
-                VMObject.ArrayObject arr = (VMObject.ArrayObject) vm.heap.get(params[0]);
+                VMObject.RefArrayObject arr = (VMObject.RefArrayObject) vm.heap.get(params[0]);
                 VMObject.ArrayListObject alObj = new VMObject.ArrayListObject(vm);
-                alObj.value = new ArrayList<>(arr.value.length);
-                for (int o : arr.value) alObj.value.add(o);
+                alObj.value = new IntList(arr.value.length);
+                alObj.value.addAll(arr.value);
                 vm.returnValue = vm.allocateObject(alObj);
             }
         });
@@ -239,7 +224,7 @@ public class Methods {
             @Override
             public void handle(QuickVM vm, int[] params) {
                 VMObject.ArrayListObject obj = new VMObject.ArrayListObject(vm);
-                obj.value = new ArrayList<>();
+                obj.value = new IntList();
                 vm.returnValue = vm.allocateObject(obj);
             }
         });
@@ -257,17 +242,25 @@ public class Methods {
             @Override
             public void handle(QuickVM vm, int[] params) {
                 VMObject.HashMapObject hObj = (VMObject.HashMapObject) vm.heap.get(params[0]);
-                hObj.value = new HashMap<>();
+                hObj.value = new HandleMap(vm.heap, true);
             }
         });
         
-        /*handlers.put("Ljava/util/HashMap;->get(Ljava/lang/Object;)Ljava/lang/Object;", new QuickVM.MethodHandler() {
+        handlers.put("Ljava/util/HashMap;->get(Ljava/lang/Object;)Ljava/lang/Object;", new QuickVM.MethodHandler() {
             @Override
             public void handle(QuickVM vm, int[] params) {
                 VMObject.HashMapObject hObj = (VMObject.HashMapObject) vm.heap.get(params[0]);
                 vm.returnValue = hObj.value.get(params[1]);
             }
-        });*/
+        });
+        
+        handlers.put("Ljava/util/HashMap;->containsKey(Ljava/lang/Object;)Z", new QuickVM.MethodHandler() {
+            @Override
+            public void handle(QuickVM vm, int[] params) {
+                VMObject.HashMapObject hObj = (VMObject.HashMapObject) vm.heap.get(params[0]);
+                vm.returnValue = hObj.value.contains(params[1]) ? 1 : 0;
+            }
+        });
         
         handlers.put("Ljava/util/HashMap;->put(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;", new QuickVM.MethodHandler() {
             @Override
@@ -281,7 +274,7 @@ public class Methods {
             @Override
             public void handle(QuickVM vm, int[] params) {
                 VMObject.HashMapObject obj = new VMObject.HashMapObject(vm);
-                obj.value = new HashMap<>();
+                obj.value = new HandleMap(vm.heap, true);
                 vm.returnValue = vm.allocateObject(obj);
             }
         });
@@ -299,7 +292,7 @@ public class Methods {
             @Override
             public void handle(QuickVM vm, int[] params) {
                 VMObject.HashSetObject hObj = (VMObject.HashSetObject) vm.heap.get(params[0]);
-                hObj.value = new HashSet<>();
+                hObj.value = new HandleMap(vm.heap, false);
             }
         });
         
@@ -308,7 +301,8 @@ public class Methods {
             public void handle(QuickVM vm, int[] params) {
                 VMObject.HashSetObject hObj = (VMObject.HashSetObject) vm.heap.get(params[0]);
                 VMObject.ArrayListObject arr = (VMObject.ArrayListObject) vm.heap.get(params[1]);
-                hObj.value = new HashSet<>(arr.value);
+                hObj.value = new HandleMap(vm.heap, false);
+                for (int i = 0; i < arr.value.size(); i++) hObj.value.add(arr.value.get(i));
             }
         });
         
@@ -320,6 +314,14 @@ public class Methods {
             }
         });
         
+        handlers.put("Ljava/util/HashSet;->contains(Ljava/lang/Object;)Z", new QuickVM.MethodHandler() {
+            @Override
+            public void handle(QuickVM vm, int[] params) {
+                VMObject.HashSetObject hObj = (VMObject.HashSetObject) vm.heap.get(params[0]);
+                vm.returnValue = hObj.value.contains(params[1]) ? 1 : 0;
+            }
+        });
+        
         /** TODO:
 LinkedHashMap
 Hashtable
@@ -0,0 +1,281 @@
+package quickvm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Dalvik opcodes, in bytecode order, plus the payload pseudo-instructions.
+ * Variants (i.e. /16, /lit8, /2addr, /range) get their own opcode, so the
+ * decoder knows the operand layout without looking at the mnemonic again.
+ */
+public enum Opcode {
+
+    NOP("nop", Format.Format10x),
+    MOVE("move", Format.Format12x),
+    MOVE_FROM16("move/from16", Format.Format22x),
+    MOVE_16("move/16", Format.Format32x),
+    MOVE_WIDE("move-wide", Format.Format12x),
+    MOVE_WIDE_FROM16("move-wide/from16", Format.Format22x),
+    MOVE_WIDE_16("move-wide/16", Format.Format32x),
+    MOVE_OBJECT("move-object", Format.Format12x),
+    MOVE_OBJECT_FROM16("move-object/from16", Format.Format22x),
+    MOVE_OBJECT_16("move-object/16", Format.Format32x),
+    MOVE_RESULT("move-result", Format.Format11x),
+    MOVE_RESULT_WIDE("move-result-wide", Format.Format11x),
+    MOVE_RESULT_OBJECT("move-result-object", Format.Format11x),
+    MOVE_EXCEPTION("move-exception", Format.Format11x),
+    RETURN_VOID("return-void", Format.Format10x),
+    RETURN("return", Format.Format11x),
+    RETURN_WIDE("return-wide", Format.Format11x),
+    RETURN_OBJECT("return-object", Format.Format11x),
+    CONST_4("const/4", Format.Format11n),
+    CONST_16("const/16", Format.Format21s),
+    CONST("const", Format.Format31i),
+    CONST_HIGH16("const/high16", Format.Format21h),
+    CONST_WIDE_16("const-wide/16", Format.Format21s),
+    CONST_WIDE_32("const-wide/32", Format.Format31i),
+    CONST_WIDE("const-wide", Format.Format51l),
+    CONST_WIDE_HIGH16("const-wide/high16", Format.Format21h),
+    CONST_STRING("const-string", Format.Format21c),
+    CONST_STRING_JUMBO("const-string/jumbo", Format.Format31c),
+    CONST_CLASS("const-class", Format.Format21c),
+    MONITOR_ENTER("monitor-enter", Format.Format11x),
+    MONITOR_EXIT("monitor-exit", Format.Format11x),
+    CHECK_CAST("check-cast", Format.Format21c),
+    INSTANCE_OF("instance-of", Format.Format22c),
+    ARRAY_LENGTH("array-length", Format.Format12x),
+    NEW_INSTANCE("new-instance", Format.Format21c),
+    NEW_ARRAY("new-array", Format.Format22c),
+    FILLED_NEW_ARRAY("filled-new-array", Format.Format35c),
+    FILLED_NEW_ARRAY_RANGE("filled-new-array/range", Format.Format3rc),
+    FILL_ARRAY_DATA("fill-array-data", Format.Format31t),
+    THROW("throw", Format.Format11x),
+    GOTO("goto", Format.Format10t),
+    GOTO_16("goto/16", Format.Format20t),
+    GOTO_32("goto/32", Format.Format30t),
+    PACKED_SWITCH("packed-switch", Format.Format31t),
+    SPARSE_SWITCH("sparse-switch", Format.Format31t),
+    CMPL_FLOAT("cmpl-float", Format.Format23x),
+    CMPG_FLOAT("cmpg-float", Format.Format23x),
+    CMPL_DOUBLE("cmpl-double", Format.Format23x),
+    CMPG_DOUBLE("cmpg-double", Format.Format23x),
+    CMP_LONG("cmp-long", Format.Format23x),
+    IF_EQ("if-eq", Format.Format22t),
+    IF_NE("if-ne", Format.Format22t),
+    IF_LT("if-lt", Format.Format22t),
+    IF_GE("if-ge", Format.Format22t),
+    IF_GT("if-gt", Format.Format22t),
+    IF_LE("if-le", Format.Format22t),
+    IF_EQZ("if-eqz", Format.Format21t),
+    IF_NEZ("if-nez", Format.Format21t),
+    IF_LTZ("if-ltz", Format.Format21t),
+    IF_GEZ("if-gez", Format.Format21t),
+    IF_GTZ("if-gtz", Format.Format21t),
+    IF_LEZ("if-lez", Format.Format21t),
+    AGET("aget", Format.Format23x),
+    AGET_WIDE("aget-wide", Format.Format23x),
+    AGET_OBJECT("aget-object", Format.Format23x),
+    AGET_BOOLEAN("aget-boolean", Format.Format23x),
+    AGET_BYTE("aget-byte", Format.Format23x),
+    AGET_CHAR("aget-char", Format.Format23x),
+    AGET_SHORT("aget-short", Format.Format23x),
+    APUT("aput", Format.Format23x),
+    APUT_WIDE("aput-wide", Format.Format23x),
+    APUT_OBJECT("aput-object", Format.Format23x),
+    APUT_BOOLEAN("aput-boolean", Format.Format23x),
+    APUT_BYTE("aput-byte", Format.Format23x),
+    APUT_CHAR("aput-char", Format.Format23x),
+    APUT_SHORT("aput-short", Format.Format23x),
+    IGET("iget", Format.Format22c),
+    IGET_WIDE("iget-wide", Format.Format22c),
+    IGET_OBJECT("iget-object", Format.Format22c),
+    IGET_BOOLEAN("iget-boolean", Format.Format22c),
+    IGET_BYTE("iget-byte", Format.Format22c),
+    IGET_CHAR("iget-char", Format.Format22c),
+    IGET_SHORT("iget-short", Format.Format22c),
+    IPUT("iput", Format.Format22c),
+    IPUT_WIDE("iput-wide", Format.Format22c),
+    IPUT_OBJECT("iput-object", Format.Format22c),
+    IPUT_BOOLEAN("iput-boolean", Format.Format22c),
+    IPUT_BYTE("iput-byte", Format.Format22c),
+    IPUT_CHAR("iput-char", Format.Format22c),
+    IPUT_SHORT("iput-short", Format.Format22c),
+    SGET("sget", Format.Format21c),
+    SGET_WIDE("sget-wide", Format.Format21c),
+    SGET_OBJECT("sget-object", Format.Format21c),
+    SGET_BOOLEAN("sget-boolean", Format.Format21c),
+    SGET_BYTE("sget-byte", Format.Format21c),
+    SGET_CHAR("sget-char", Format.Format21c),
+    SGET_SHORT("sget-short", Format.Format21c),
+    SPUT("sput", Format.Format21c),
+    SPUT_WIDE("sput-wide", Format.Format21c),
+    SPUT_OBJECT("sput-object", Format.Format21c),
+    SPUT_BOOLEAN("sput-boolean", Format.Format21c),
+    SPUT_BYTE("sput-byte", Format.Format21c),
+    SPUT_CHAR("sput-char", Format.Format21c),
+    SPUT_SHORT("sput-short", Format.Format21c),
+    INVOKE_VIRTUAL("invoke-virtual", Format.Format35c),
+    INVOKE_SUPER("invoke-super", Format.Format35c),
+    INVOKE_DIRECT("invoke-direct", Format.Format35c),
+    INVOKE_STATIC("invoke-static", Format.Format35c),
+    INVOKE_INTERFACE("invoke-interface", Format.Format35c),
+    INVOKE_VIRTUAL_RANGE("invoke-virtual/range", Format.Format3rc),
+    INVOKE_SUPER_RANGE("invoke-super/range", Format.Format3rc),
+    INVOKE_DIRECT_RANGE("invoke-direct/range", Format.Format3rc),
+    INVOKE_STATIC_RANGE("invoke-static/range", Format.Format3rc),
+    INVOKE_INTERFACE_RANGE("invoke-interface/range", Format.Format3rc),
+    NEG_INT("neg-int", Format.Format12x),
+    NOT_INT("not-int", Format.Format12x),
+    NEG_LONG("neg-long", Format.Format12x),
+    NOT_LONG("not-long", Format.Format12x),
+    NEG_FLOAT("neg-float", Format.Format12x),
+    NEG_DOUBLE("neg-double", Format.Format12x),
+    INT_TO_LONG("int-to-long", Format.Format12x),
+    INT_TO_FLOAT("int-to-float", Format.Format12x),
+    INT_TO_DOUBLE("int-to-double", Format.Format12x),
+    LONG_TO_INT("long-to-int", Format.Format12x),
+    LONG_TO_FLOAT("long-to-float", Format.Format12x),
+    LONG_TO_DOUBLE("long-to-double", Format.Format12x),
+    FLOAT_TO_INT("float-to-int", Format.Format12x),
+    FLOAT_TO_LONG("float-to-long", Format.Format12x),
+    FLOAT_TO_DOUBLE("float-to-double", Format.Format12x),
+    DOUBLE_TO_INT("double-to-int", Format.Format12x),
+    DOUBLE_TO_LONG("double-to-long", Format.Format12x),
+    DOUBLE_TO_FLOAT("double-to-float", Format.Format12x),
+    INT_TO_BYTE("int-to-byte", Format.Format12x),
+    INT_TO_CHAR("int-to-char", Format.Format12x),
+    INT_TO_SHORT("int-to-short", Format.Format12x),
+    ADD_INT("add-int", Format.Format23x),
+    SUB_INT("sub-int", Format.Format23x),
+    MUL_INT("mul-int", Format.Format23x),
+    DIV_INT("div-int", Format.Format23x),
+    REM_INT("rem-int", Format.Format23x),
+    AND_INT("and-int", Format.Format23x),
+    OR_INT("or-int", Format.Format23x),
+    XOR_INT("xor-int", Format.Format23x),
+    SHL_INT("shl-int", Format.Format23x),
+    SHR_INT("shr-int", Format.Format23x),
+    USHR_INT("ushr-int", Format.Format23x),
+    ADD_LONG("add-long", Format.Format23x),
+    SUB_LONG("sub-long", Format.Format23x),
+    MUL_LONG("mul-long", Format.Format23x),
+    DIV_LONG("div-long", Format.Format23x),
+    REM_LONG("rem-long", Format.Format23x),
+    AND_LONG("and-long", Format.Format23x),
+    OR_LONG("or-long", Format.Format23x),
+    XOR_LONG("xor-long", Format.Format23x),
+    SHL_LONG("shl-long", Format.Format23x),
+    SHR_LONG("shr-long", Format.Format23x),
+    USHR_LONG("ushr-long", Format.Format23x),
+    ADD_FLOAT("add-float", Format.Format23x),
+    SUB_FLOAT("sub-float", Format.Format23x),
+    MUL_FLOAT("mul-float", Format.Format23x),
+    DIV_FLOAT("div-float", Format.Format23x),
+    REM_FLOAT("rem-float", Format.Format23x),
+    ADD_DOUBLE("add-double", Format.Format23x),
+    SUB_DOUBLE("sub-double", Format.Format23x),
+    MUL_DOUBLE("mul-double", Format.Format23x),
+    DIV_DOUBLE("div-double", Format.Format23x),
+    REM_DOUBLE("rem-double", Format.Format23x),
+    ADD_INT_2ADDR("add-int/2addr", Format.Format12x),
+    SUB_INT_2ADDR("sub-int/2addr", Format.Format12x),
+    MUL_INT_2ADDR("mul-int/2addr", Format.Format12x),
+    DIV_INT_2ADDR("div-int/2addr", Format.Format12x),
+    REM_INT_2ADDR("rem-int/2addr", Format.Format12x),
+    AND_INT_2ADDR("and-int/2addr", Format.Format12x),
+    OR_INT_2ADDR("or-int/2addr", Format.Format12x),
+    XOR_INT_2ADDR("xor-int/2addr", Format.Format12x),
+    SHL_INT_2ADDR("shl-int/2addr", Format.Format12x),
+    SHR_INT_2ADDR("shr-int/2addr", Format.Format12x),
+    USHR_INT_2ADDR("ushr-int/2addr", Format.Format12x),
+    ADD_LONG_2ADDR("add-long/2addr", Format.Format12x),
+    SUB_LONG_2ADDR("sub-long/2addr", Format.Format12x),
+    MUL_LONG_2ADDR("mul-long/2addr", Format.Format12x),
+    DIV_LONG_2ADDR("div-long/2addr", Format.Format12x),
+    REM_LONG_2ADDR("rem-long/2addr", Format.Format12x),
+    AND_LONG_2ADDR("and-long/2addr", Format.Format12x),
+    OR_LONG_2ADDR("or-long/2addr", Format.Format12x),
+    XOR_LONG_2ADDR("xor-long/2addr", Format.Format12x),
+    SHL_LONG_2ADDR("shl-long/2addr", Format.Format12x),
+    SHR_LONG_2ADDR("shr-long/2addr", Format.Format12x),
+    USHR_LONG_2ADDR("ushr-long/2addr", Format.Format12x),
+    ADD_FLOAT_2ADDR("add-float/2addr", Format.Format12x),
+    SUB_FLOAT_2ADDR("sub-float/2addr", Format.Format12x),
+    MUL_FLOAT_2ADDR("mul-float/2addr", Format.Format12x),
+    DIV_FLOAT_2ADDR("div-float/2addr", Format.Format12x),
+    REM_FLOAT_2ADDR("rem-float/2addr", Format.Format12x),
+    ADD_DOUBLE_2ADDR("add-double/2addr", Format.Format12x),
+    SUB_DOUBLE_2ADDR("sub-double/2addr", Format.Format12x),
+    MUL_DOUBLE_2ADDR("mul-double/2addr", Format.Format12x),
+    DIV_DOUBLE_2ADDR("div-double/2addr", Format.Format12x),
+    REM_DOUBLE_2ADDR("rem-double/2addr", Format.Format12x),
+    ADD_INT_LIT16("add-int/lit16", Format.Format22s),
+    RSUB_INT("rsub-int", Format.Format22s),
+    MUL_INT_LIT16("mul-int/lit16", Format.Format22s),
+    DIV_INT_LIT16("div-int/lit16", Format.Format22s),
+    REM_INT_LIT16("rem-int/lit16", Format.Format22s),
+    AND_INT_LIT16("and-int/lit16", Format.Format22s),
+    OR_INT_LIT16("or-int/lit16", Format.Format22s),
+    XOR_INT_LIT16("xor-int/lit16", Format.Format22s),
+    ADD_INT_LIT8("add-int/lit8", Format.Format22b),
+    RSUB_INT_LIT8("rsub-int/lit8", Format.Format22b),
+    MUL_INT_LIT8("mul-int/lit8", Format.Format22b),
+    DIV_INT_LIT8("div-int/lit8", Format.Format22b),
+    REM_INT_LIT8("rem-int/lit8", Format.Format22b),
+    AND_INT_LIT8("and-int/lit8", Format.Format22b),
+    OR_INT_LIT8("or-int/lit8", Format.Format22b),
+    XOR_INT_LIT8("xor-int/lit8", Format.Format22b),
+    SHL_INT_LIT8("shl-int/lit8", Format.Format22b),
+    SHR_INT_LIT8("shr-int/lit8", Format.Format22b),
+    USHR_INT_LIT8("ushr-int/lit8", Format.Format22b),
+    INVOKE_POLYMORPHIC("invoke-polymorphic", Format.Format45cc),
+    INVOKE_POLYMORPHIC_RANGE("invoke-polymorphic/range", Format.Format4rcc),
+    INVOKE_CUSTOM("invoke-custom", Format.Format35c),
+    INVOKE_CUSTOM_RANGE("invoke-custom/range", Format.Format3rc),
+    CONST_METHOD_HANDLE("const-method-handle", Format.Format21c),
+    CONST_METHOD_TYPE("const-method-type", Format.Format21c),
+
+    // Payload pseudo-instructions
+    PACKED_SWITCH_PAYLOAD(".packed-switch", Format.PackedSwitchPayload),
+    SPARSE_SWITCH_PAYLOAD(".sparse-switch", Format.SparseSwitchPayload),
+    ARRAY_PAYLOAD(".array-data", Format.ArrayPayload);
+
+    /**
+     * Instruction formats, named like in the Dalvik bytecode spec.
+     * Only the operand layout matters here, not the bit encoding.
+     */
+    public static enum Format {
+        Format10x, Format12x, Format11n, Format11x, Format10t, Format20t,
+        Format22x, Format21t, Format21s, Format21h, Format21c, Format23x,
+        Format22b, Format22t, Format22s, Format22c, Format30t, Format32x,
+        Format31i, Format31t, Format31c, Format35c, Format3rc, Format45cc,
+        Format4rcc, Format51l,
+        PackedSwitchPayload, SparseSwitchPayload, ArrayPayload
+    }
+
+    /** Mnemonic, as written in smali. */
+    public final String mnemonic;
+
+    public final Format format;
+
+    private Opcode(String mnemonic, Format format) {
+        this.mnemonic = mnemonic;
+        this.format = format;
+    }
+
+    private static final Map<String, Opcode> byMnemonic = new HashMap<>();
+    static {
+        for (Opcode op : values()) byMnemonic.put(op.mnemonic, op);
+    }
+
+    /** Returns the opcode for a mnemonic, null if there's no such opcode. */
+    public static Opcode forMnemonic(String mnemonic) {
+        return byMnemonic.get(mnemonic);
+    }
+
+    @Override
+    public String toString() {
+        return mnemonic;
+    }
+
+}
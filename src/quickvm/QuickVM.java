@@ -1,13 +1,14 @@
 package quickvm;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.Reader;
+import java.io.PrintStream;
 import java.util.ArrayDeque;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -16,222 +17,587 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
 import java.util.Set;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import static quickvm.util.ReaderUtil.readLine;
-import static quickvm.util.StringUtil.stripComment;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Barebones Smali VM. Probably the dirtiest code I've ever written.
- * DOESN'T EVEN HAVE GC. NOT EVEN A GC. And it assumes the bytecode given
- * is well-formed and verifies on a real VM.
+ * It assumes the bytecode given is well-formed and verifies on a real VM.
  * 
  * Does not support exceptions, virtual methods nor 64-bit operations at the moment.
  */
 public class QuickVM {
     
-    public static interface OpHandler {
-        void handle(QuickVM vm, String line) throws IOException;
-    }
-    
     public static interface MethodHandler {
         void handle(QuickVM vm, int[] params);
     }
     
+    /** How methods are executed. */
+    public static enum Tier {
+        /** Run decoded instructions through {@link Ops#execute}. */
+        INTERPRETER,
+        /** Compile methods with {@link ClosureCompiler} on first invocation. */
+        CLOSURE,
+        /** Interpret methods, compiling hot ones with {@link BytecodeCompiler}. */
+        JIT
+    }
+    
+    /** Counters of the JIT tier and the collector, for tuning their thresholds. */
+    public static class Stats {
+        /** Methods compiled to JVM bytecode, and how many of them on a back edge. */
+        int compiled, compiledOnBackEdge;
+        
+        /** Methods that couldn't be compiled. */
+        int failed;
+        
+        /** Times compiled code switched into running frames at a loop. */
+        long osrEntries;
+        
+        /** Instructions compiled code left to the interpreter. */
+        long exits;
+        
+        /** Time spent compiling. */
+        long compileNanos;
+        
+        /** Garbage collections, objects they freed and time spent in them. */
+        long collections, freed, gcNanos;
+        
+        /** Classes found in the result cache, and not found. */
+        int cacheHits, cacheMisses;
+        
+        void add(Stats other) {
+            compiled += other.compiled;
+            compiledOnBackEdge += other.compiledOnBackEdge;
+            failed += other.failed;
+            osrEntries += other.osrEntries;
+            exits += other.exits;
+            compileNanos += other.compileNanos;
+            collections += other.collections;
+            freed += other.freed;
+            gcNanos += other.gcNanos;
+            cacheHits += other.cacheHits;
+            cacheMisses += other.cacheMisses;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("JIT: %d methods compiled (%d on back edges), %d failed, %.1f ms compiling;"
+                    + " %d OSR entries, %d exits to interpreter",
+                    compiled, compiledOnBackEdge, failed, compileNanos / 1e6, osrEntries, exits)
+                    + String.format("\nGC: %d collections, %d objects freed, %.1f ms collecting",
+                    collections, freed, gcNanos / 1e6)
+                    + String.format("\nCache: %d hits, %d misses", cacheHits, cacheMisses);
+        }
+    }
+    
+    /** Thrown at a safepoint when the class being run is abandoned. */
+    public static class AbandonedException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+        
+        public AbandonedException(String message) {
+            super(message);
+        }
+    }
+    
     public static class Frame {
-        /**
-         * Reader, shifted right at the start of the new instruction to execute
-         * at this scope. Reader should be marked after start of scope.
-         */
-        Reader source;
+        /** Decoded method being executed. */
+        Method method;
+        
+        /** Index of the next instruction to execute. */
+        int pc;
         
         /** Local registers. */
         int[] locals;
-        
-        /** Parameters scope was invoked with. */
-        int parameters;
-        
-        /** Scope name (method name). */
-        String name;
     }
     
     /** Call stack. */
     Deque<Frame> stack = new ArrayDeque<>();
     
-    /** Root directory where smali is stored. */
-    File root;
+    /** Where classes are loaded from. */
+    ClassPath classPath;
     
     /** Return register. */
     int returnValue;
     
-    /** Op handlers. */
-    Map<String, OpHandler> handlers = new HashMap<>();
-    
     /** Native methods. */
     Map<String, MethodHandler> methods = new HashMap<>();
     
-    /** Static fields. */
+    /** Static fields, by class id and slot. Arrays are allocated on first write. */
+    int[][] statics = new int[64][];
+    
+    /** Canonical string objects (literals and interned strings), by value. */
+    Map<String, Integer> strings = new HashMap<>();
+    
+    /** Static fields of classes not in the class path, by name. */
     Map<String, Integer> staticFields = new HashMap<>();
     
-    /** Object "heap". */
-    List<VMObject> heap = new ArrayList<>();
+    /** Static field writes, for reporting. */
+    int staticWrites;
+    
+    /** Object heap. */
+    Heap heap = new Heap();
     
     /** Initialized classes. */
     Set<String> initializedClasses = new HashSet<>();
     
     /** Last executed (not necessarily completed) command. */
-    String lastCommand;
+    Instruction lastCommand;
     
-    public void jumpToLabel(String label) throws IOException {
-        Reader source = stack.peek().source;
-        source.reset();
-        while (true) {
-            String line = readLine(source).trim();
-            if (line.equals(":"+label)) break;
-        }
+    /** Execution tier for smali methods. */
+    Tier tier = Tier.INTERPRETER;
+    
+    /** Invocations before a method is compiled, in the JIT tier. */
+    int jitThreshold = 10;
+    
+    /**
+     * Backward branches taken by the interpreter before a method is compiled
+     * and the running frame continues in compiled code, in the JIT tier.
+     */
+    int osrThreshold = 1000;
+    
+    /** JIT tier counters. */
+    Stats stats = new Stats();
+    
+    /** Instructions a class may run before it's abandoned, 0 for no limit. */
+    long instructionLimit;
+    
+    /** Wall-clock time a class may run before it's abandoned, 0 for no limit. */
+    long timeoutMillis;
+    
+    /**
+     * Keep initialized classes, their static fields and the objects they
+     * reference from one class to the next, instead of resetting the VM.
+     */
+    boolean keepClasses;
+    
+    /** State every class starts from, null to start from scratch. */
+    Snapshot base;
+    
+    /** Output of classes from previous runs, null if not cached. */
+    ResultCache results;
+    
+    /** Classes used by the running class, while caching its result. */
+    Set<String> used;
+    
+    /**
+     * Instructions left for the current class. Execution loops decrement it
+     * and call {@link #safepoint} when it runs out or {@link #cancelled} is set.
+     */
+    long budget = Long.MAX_VALUE;
+    
+    /** Budget set aside by {@link #requestSafepoint}. */
+    private long deferredBudget;
+    
+    /**
+     * Objects allocated since the last collection that trigger the next
+     * one (or the live objects after it, if more). 0 disables collection.
+     */
+    int gcThreshold = 65536;
+    
+    private int allocatedSinceGc, nextGc = gcThreshold;
+    
+    private boolean gcRequested;
+    
+    /** Set (from any thread) to abandon the current class at the next safepoint. */
+    volatile boolean cancelled;
+    
+    /** Cancels classes past their deadline. */
+    private static ScheduledExecutorService watchdog;
+    
+    /** Where static field stores are written. */
+    ResultSink sink = new ResultSink.Stream(ResultSink.Format.TEXT, System.out);
+    
+    /** Where diagnostics are printed. */
+    PrintStream err = System.err;
+    
+    public QuickVM(ClassPath classPath) {
+        this.classPath = classPath;
+        Methods.addAll(methods);
+    }
+    
+    /** New VM over the same class path, with the same settings. */
+    public QuickVM newWorker() {
+        QuickVM vm = new QuickVM(classPath);
+        vm.tier = tier;
+        vm.jitThreshold = jitThreshold;
+        vm.osrThreshold = osrThreshold;
+        vm.instructionLimit = instructionLimit;
+        vm.timeoutMillis = timeoutMillis;
+        vm.gcThreshold = gcThreshold;
+        vm.keepClasses = keepClasses;
+        vm.base = base;
+        vm.results = results;
+        if (base != null) base.restore(vm);
+        return vm;
+    }
+    
+    public void jumpToLabel(String label) {
+        Frame f = stack.peek();
+        f.pc = f.method.getLabel(label);
     }
     
     public boolean initializeType(String className) throws IOException {
+        if (used != null) used.add(className);
         if (initializedClasses.contains(className)) return false;
-        try {
-            openScope("L" + className + ";-><clinit>()V", new int[0]);
-            return true;
-        } catch (IllegalArgumentException ex) {
-            if (!ex.getMessage().equals("Method not found")) throw ex;
+        ClassDef cls = classPath.findClass(className);
+        if (cls == null) throw new IllegalArgumentException("Class not found: " + className);
+        if (!cls.hasMethod("<clinit>()V")) {
+            // Nothing to run, don't look for it again
+            initializedClasses.add(className);
+            return false;
         }
-        return false;
+        openScope("L" + className + ";-><clinit>()V", new int[0]);
+        return true;
     }
     
     public void openScope(String name, int[] params) throws IOException {
-        if (methods.containsKey(name)) {
-            methods.get(name).handle(this, params);
+        MethodHandler handler = nativeFor(name);
+        if (handler != null) {
+            handler.handle(this, params);
             return;
         }
-        if (name.charAt(0) == '[') {
-            methods.get("[->" + name.split("->", 2)[1]).handle(this, params);
+        Frame f = enter(resolve(name));
+        System.arraycopy(params, 0, f.locals, f.locals.length - params.length, params.length);
+        initialize(f.method);
+    }
+    
+    /**
+     * Run the target of an invoke instruction. The target is resolved on
+     * the first call (and after its body is evicted) and cached in the
+     * instruction, and arguments go straight from the caller's registers
+     * to the callee's.
+     */
+    public void invoke(Instruction insn, int[] locals) throws IOException {
+        MethodHandler handler = insn.handler;
+        Method method = insn.method;
+        if (method != null && method.original.evicted) method = null;
+        if (handler == null && method == null) {
+            handler = nativeFor(insn.ref);
+            if (handler != null) insn.handler = handler;
+            else insn.method = method = resolve(insn.ref);
+        }
+        int[] regs = insn.regs;
+        if (handler != null) {
+            int[] params = new int[regs.length];
+            for (int i = 0; i < regs.length; i++) params[i] = locals[regs[i]];
+            handler.handle(this, params);
             return;
         }
+        Frame f = enter(method);
+        int base = f.locals.length - regs.length;
+        for (int i = 0; i < regs.length; i++) f.locals[base + i] = locals[regs[i]];
+        initialize(method);
+    }
+    
+    /** Native handler of a method, or null if it's not native. */
+    MethodHandler nativeFor(String name) {
+        MethodHandler handler = methods.get(name);
+        if (handler == null && name.charAt(0) == '[')
+            handler = methods.get("[->" + name.split("->", 2)[1]);
+        return handler;
+    }
+    
+    private Method resolve(String name) throws IOException {
         if (name.charAt(0) != 'L')
             throw new IllegalArgumentException("What the fuck");
-        
+        return classPath.getMethod(name);
+    }
+    
+    /** Push a frame for the method, compiling it first if it's time to. */
+    private Frame enter(Method method) {
         if (stack.size() > 32)
             throw new IllegalStateException("Too much fucking recursion");
+        if (used != null) used.add(method.className);
         
-        String className = name.split(";")[0].substring(1);
-        String methodName = name.split("->")[1];
-        File file = new File(root, className + ".smali");
-        
-        Reader source = null;
-        //try {
-            try {
-                source = new BufferedReader(new FileReader(file));
-            } catch (FileNotFoundException ex) {
-                throw new IllegalArgumentException("Class not found for: " + name, ex);
-            }
-            
-            
-            while (true) {
-                String line_ = readLine(source);
-                if (line_ == null) throw new IllegalArgumentException("Method not found");
-                String[] line = line_.trim().split("\\s+");
-                if (line[0].equals(".method") && line[line.length-1].equals(methodName))
-                    break;
-            }
-
-            int regs;
-            String[] line = readLine(source).trim().split("\\s+", 2);
-            if (line[0].equals(".locals")) {
-                regs = params.length + Integer.parseInt(line[1]);
-            } else if (line[0].equals(".registers")) {
-                regs = Integer.parseInt(line[1]);
-            } else {
-                throw new IllegalArgumentException("Expected .locals or .registers");
-            }
-            source.mark(0x10000);
-        
-            Frame f = new Frame();
-            f.name = name;
-            f.locals = new int[regs];
-            f.parameters = params.length;
-            System.arraycopy(params, 0, f.locals, f.locals.length - params.length, params.length);
-            f.source = source;
-            stack.push(f);
-            source = null;
-        /*} finally {
-            if (source != null) source.close();
-        }*/
+        if (tier == Tier.CLOSURE && method.closures == null) {
+            Method original = method.original;
+            if (original.closures == null) original.closures = ClosureCompiler.compile(original);
+            method.closures = original.closures;
+        }
+        if (tier == Tier.JIT && method.compiled == null && ++method.invocations >= jitThreshold)
+            compile(method);
         
-        if (methodName.equals("<clinit>()V"))
-            initializedClasses.add(className);
+        Frame f = new Frame();
+        f.method = method;
+        f.locals = new int[method.registers];
+        stack.push(f);
+        return f;
+    }
+    
+    /** Initialize the class of a method just entered; its frame stays below. */
+    private void initialize(Method method) throws IOException {
+        if (method.isClinit)
+            initializedClasses.add(method.className);
         else
-            initializeType(className);
+            initializeType(method.className);
+    }
+    
+    /**
+     * Compile a method to JVM bytecode, unless it already is or it failed
+     * before. Returns whether the method is compiled.
+     */
+    boolean compile(Method method) {
+        // Methods sharing a body share its compiled code
+        Method original = method.original;
+        if (original.compiled == null && !original.uncompilable) {
+            long start = System.nanoTime();
+            original.compiled = BytecodeCompiler.compile(this, original);
+            stats.compileNanos += System.nanoTime() - start;
+            original.uncompilable = original.compiled == null;
+            if (original.uncompilable) stats.failed++;
+            else stats.compiled++;
+        }
+        method.compiled = original.compiled;
+        method.uncompilable = original.uncompilable;
+        return method.compiled != null;
+    }
+    
+    /**
+     * Record a class (and its superclasses) as used by the running class, if
+     * caching. The missing superclass of the topmost one is recorded too, so
+     * adding it to the class path invalidates the result.
+     */
+    void use(ClassDef cls) {
+        if (used == null || cls == null) return;
+        for (ClassDef c : cls.ancestors) used.add(c.name);
+        use(cls.ancestors[0].superName, null);
+    }
+    
+    /**
+     * Record a class referenced by descriptor (i.e. "Lfoo/Bar;") as used,
+     * and its definition if it's in the class path.
+     */
+    void use(String type, ClassDef cls) {
+        if (used == null) return;
+        if (type != null && type.startsWith("L") && type.endsWith(";"))
+            used.add(type.substring(1, type.length() - 1));
+        use(cls);
+    }
+    
+    /** Record the class a field is referenced through, and the one declaring it, as used. */
+    void use(FieldRef field) {
+        if (used != null) use(field.name.substring(0, field.name.indexOf("->")), field.owner);
+    }
+    
+    public int getStatic(FieldRef field) {
+        use(field);
+        if (field.owner == null) {
+            Integer value = staticFields.get(field.name);
+            return value != null ? value : 0;
+        }
+        int id = field.owner.id;
+        return id < statics.length && statics[id] != null ? statics[id][field.slot] : 0;
+    }
+    
+    public void putStatic(FieldRef field, int value) {
+        staticWrites++;
+        use(field);
+        if (field.owner == null) {
+            staticFields.put(field.name, value);
+            return;
+        }
+        int id = field.owner.id;
+        if (id >= statics.length) statics = Arrays.copyOf(statics, Math.max(id + 1, statics.length * 2));
+        if (statics[id] == null) statics[id] = new int[field.owner.staticCount];
+        statics[id][field.slot] = value;
+    }
+    
+    public void closeScope() {
+        stack.pop();
+    }
+    
+    /**
+     * Checks whether the current class has to be abandoned, because it
+     * ran out of instructions or time, and throws if so.
+     */
+    public void safepoint() {
+        budget += deferredBudget;
+        deferredBudget = 0;
+        if (cancelled)
+            throw new AbandonedException("Deadline exceeded");
+        if (budget < 0)
+            throw new AbandonedException("Instruction budget exceeded");
+        if (gcRequested) {
+            gcRequested = false;
+            collectGarbage();
+        }
+    }
+    
+    /** Make execution loops call {@link #safepoint} as soon as possible. */
+    void requestSafepoint() {
+        deferredBudget += budget;
+        budget = 0;
     }
     
-    public void closeScope() throws IOException {
-        stack.pop().source.close();
+    public void collectGarbage() {
+        long start = System.nanoTime();
+        stats.collections++;
+        stats.freed += heap.collect(this);
+        stats.gcNanos += System.nanoTime() - start;
+        allocatedSinceGc = 0;
+        nextGc = Math.max(gcThreshold, heap.size());
+    }
+    
+    private static synchronized ScheduledExecutorService watchdog() {
+        if (watchdog == null) {
+            watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "quickvm-watchdog");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return watchdog;
     }
     
     public void step() throws IOException {
-        Reader source = stack.peek().source;
-        while (true) {
-            int c = source.read();
-            if (c == -1) throw new IllegalArgumentException("Unexpected end of file");
-            if (Character.isWhitespace(c) || c == '#') continue;
-            
-            // Skip labels
-            if (c == ':') {
-                readLine(source);
+        if (--budget < 0 || cancelled) safepoint();
+        Frame f = stack.peek();
+        if (f.pc >= f.method.code.length)
+            throw new IllegalArgumentException("Unexpected end of method");
+        Instruction insn = f.method.code[f.pc++];
+        lastCommand = insn;
+        Ops.execute(this, f, insn);
+    }
+    
+    /** Run until the call stack is empty. */
+    public void run() throws IOException {
+        while (!stack.isEmpty()) {
+            Frame f = stack.peek();
+            if (f.method.compiled != null) {
+                BytecodeCompiler.run(this, f);
                 continue;
             }
-            
-            // Process everything else
-            String line = ((char)c) + readLine(source);
-            lastCommand = line;
-            line = stripComment(line).trim();
-            String name = line.split("\\s+")[0].split("/", 2)[0].trim();
-            if (!handlers.containsKey(name))
-                throw new IllegalArgumentException("Unknown command:\n" + line);
-            handlers.get(name).handle(this, line);
-            break;
+            if (f.method.closures != null) {
+                ClosureCompiler.run(this, f);
+                continue;
+            }
+            Instruction[] code = f.method.code;
+            boolean counting = tier == Tier.JIT && !f.method.uncompilable;
+            do {
+                if (f.pc >= code.length)
+                    throw new IllegalArgumentException("Unexpected end of method");
+                if (--budget < 0 || cancelled) safepoint();
+                int pc = f.pc;
+                Instruction insn = code[f.pc++];
+                lastCommand = insn;
+                Ops.execute(this, f, insn);
+                
+                // On-stack replacement: branch targets are entry points of
+                // compiled code, so the frame can just continue there
+                if (counting && f.pc <= pc && stack.peek() == f
+                        && (f.method.compiled != null || ++f.method.backEdges >= osrThreshold)) {
+                    boolean fresh = f.method.compiled == null;
+                    if (compile(f.method)) {
+                        if (fresh) stats.compiledOnBackEdge++;
+                        stats.osrEntries++;
+                        break;
+                    }
+                    counting = false;
+                }
+            } while (stack.peek() == f);
         }
     }
     
     public int allocateObject(VMObject obj) {
-        int idx = heap.size();
-        heap.add(obj);
-        return idx;
+        if (++allocatedSinceGc == nextGc && gcThreshold > 0) {
+            gcRequested = true;
+            requestSafepoint();
+        }
+        return heap.allocate(obj);
     }
     
-    public void reset() throws IOException {
+    /** Handle of the canonical string object with the given value, allocating it if needed. */
+    public int intern(String value) {
+        Integer handle = strings.get(value);
+        if (handle == null) {
+            handle = allocateObject(new VMObject.StringObject(value));
+            strings.put(value, handle);
+        }
+        return handle;
+    }
+    
+    /** Canonical handle of a string object, making it canonical if there's none yet. */
+    public int intern(int handle) {
+        String value = ((VMObject.StringObject) heap.get(handle)).value;
+        Integer canonical = strings.get(value);
+        if (canonical != null) return canonical;
+        strings.put(value, handle);
+        return handle;
+    }
+    
+    /**
+     * Forget the classes whose static constructor didn't finish, so they're
+     * initialized again if needed. Static fields they set elsewhere stay.
+     */
+    void rollback() {
+        for (Frame f : stack) {
+            if (!f.method.isClinit) continue;
+            initializedClasses.remove(f.method.className);
+            ClassDef cls = classPath.classes.get(f.method.className);
+            if (cls != null && cls.id < statics.length) statics[cls.id] = null;
+        }
+    }
+    
+    /** Get ready for the next class, keeping initialized classes. */
+    void release() {
+        while (!stack.isEmpty()) closeScope();
+        staticWrites = 0;
+        returnValue = 0;
+    }
+    
+    public void reset() {
         while (!stack.isEmpty()) closeScope();
+        Arrays.fill(statics, null);
         staticFields.clear();
+        staticWrites = 0;
+        strings.clear();
         heap.clear();
-        heap.add(null);
+        allocatedSinceGc = 0;
+        nextGc = gcThreshold;
+        gcRequested = false;
         initializedClasses.clear();
         returnValue = 0;
+        if (base != null) base.restore(this);
+    }
+    
+    /**
+     * Initialize the given classes (smali paths, like inputs) and make every
+     * class from now on start from the resulting state, instead of from
+     * scratch. Base classes that fail are left out.
+     */
+    public Snapshot initializeBase(List<String> files) {
+        boolean keep = keepClasses;
+        keepClasses = true;
+        for (String file : files) runClass(file);
+        keepClasses = keep;
+        base = new Snapshot(this);
+        reset();
+        return base;
     }
     
     public void dumpState() {
-        System.err.println(" Last command:\n    " + lastCommand);
+        err.println(" Last command:\n    " + lastCommand);
         for (Frame f : stack) {
-            System.err.printf("\n * %s\n   Registers:", f.name);
+            err.printf("\n * %s\n   Registers:", f.method.name);
             int regslength = 0;
             for (int i = 0; i < f.locals.length; i++) {
                 if (f.locals[i] != 0) regslength = i+1;
             }
             for (int i = 0; i < regslength; i++) {
-                if (i % 5 == 0) System.err.printf("\n   ");
-                System.err.printf("  %08x", f.locals[i]);
-            }
-            System.err.printf("\n   Source:\n");
-            try {
-                System.err.println("     | " + readLine(f.source));
-                System.err.println("     | " + readLine(f.source));
-                System.err.println("     | " + readLine(f.source));
-            } catch (IOException ex1) {
-                Logger.getLogger(QuickVM.class.getName()).log(Level.SEVERE, null, ex1);
+                if (i % 5 == 0) err.printf("\n   ");
+                err.printf("  %08x", f.locals[i]);
             }
-            System.err.println("     ...");
+            err.printf("\n   Source:\n");
+            for (int pc = f.pc; pc < f.pc + 3 && pc < f.method.code.length; pc++)
+                err.println("     | " + f.method.code[pc].line);
+            err.println("     ...");
         }
     }
     
@@ -239,15 +605,209 @@ public class QuickVM {
     
     public final static boolean VERBOSE = true;
     
+    /**
+     * Initialize the class at the given smali path (relative to the root)
+     * and reset the VM afterwards. Returns false if it failed.
+     */
+    public boolean runClass(String file) {
+        err.println("Trying file: " + file);
+        if (results == null || !file.endsWith(".smali")) return runFile(file);
+        String className = ClassPath.classNameOf(file);
+        if (!classPath.exists(className)) return runFile(file);
+        
+        try {
+            ResultCache.Result hit = results.lookup(className);
+            if (hit != null) {
+                stats.cacheHits++;
+                err.write(hit.err, 0, hit.err.length);
+                sink.addEncoded(hit.out);
+                return true;
+            }
+        } catch (IOException ex) {
+            err.println("Result cache: " + ex);
+        }
+        stats.cacheMisses++;
+        
+        ResultSink realSink = sink;
+        PrintStream realErr = err;
+        ByteArrayOutputStream bufferedOut = new ByteArrayOutputStream(), bufferedErr = new ByteArrayOutputStream();
+        sink = new ResultSink.Stream(realSink.format, bufferedOut);
+        err = new PrintStream(bufferedErr);
+        used = new HashSet<>();
+        boolean ok;
+        try {
+            ok = runFile(file);
+        } finally {
+            err.flush();
+            sink = realSink;
+            err = realErr;
+        }
+        Set<String> usedClasses = used;
+        used = null;
+        byte[] outBytes = bufferedOut.toByteArray(), errBytes = bufferedErr.toByteArray();
+        err.write(errBytes, 0, errBytes.length);
+        sink.addEncoded(outBytes);
+        if (ok) {
+            try {
+                results.store(className, usedClasses, outBytes, errBytes);
+            } catch (IOException ex) {
+                err.println("Result cache: " + ex);
+            }
+        }
+        return ok;
+    }
+    
+    private boolean runFile(String file) {
+        budget = instructionLimit > 0 ? instructionLimit : Long.MAX_VALUE;
+        deferredBudget = 0;
+        cancelled = false;
+        ScheduledFuture<?> deadline = null;
+        if (timeoutMillis > 0) {
+            deadline = watchdog().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    cancelled = true;
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        
+        boolean ok = true;
+        try {
+            initializeType(ClassPath.classNameOf(file));
+            run();
+        } catch (AbandonedException ex) {
+            // Static fields set so far have been printed already
+            err.printf("Class abandoned: %s, after %d static field writes.\n", ex.getMessage(), staticWrites);
+            if (VERBOSE) {
+                err.println("VM state:");
+                dumpState();
+            }
+            err.println("File failed: " + file);
+            ok = false;
+        } catch (Exception ex) {
+            if (VERBOSE) {
+                err.println();
+                ex.printStackTrace(err);
+                err.println("VM state:");
+                dumpState();
+            }
+            err.println("File failed: " + file);
+            ok = false;
+        }
+        if (deadline != null && !deadline.cancel(false)) {
+            // It fired: wait until it's done, so it can't cancel the next class
+            try {
+                deadline.get();
+            } catch (InterruptedException | ExecutionException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+        if (!keepClasses) {
+            reset();
+        } else {
+            if (!ok) rollback();
+            release();
+        }
+        return ok;
+    }
+    
+    private static void usage() {
+        System.err.println("Usage: quickvm [--tier=interpreter|closure|jit] [--jit-threshold=N] [--osr-threshold=N] [--jobs=N]\n\t[--max-instructions=N] [--timeout=SECONDS] [--gc-threshold=N] [--keep-classes]\n\t[--base=FILE,...] [--cache=DIR] [--code-cache[=FILE]]\n\t[--code-budget=MB] [--format=text|jsonl|binary] [--stats] <smali root>");
+        System.exit(2);
+    }
+    
     public static void main(String[] args) {
         Scanner sc = new Scanner(System.in);
         
-        QuickVM vm = new QuickVM();
-        vm.root = new File(args[0]);
-        Ops.addAll(vm.handlers);
-        Methods.addAll(vm.methods);
-        vm.heap.add(null);
+        QuickVM vm = new QuickVM(null);
+        String root = null;
+        boolean printStats = false;
+        int jobs = 1;
+        List<String> baseFiles = null;
+        String cacheDir = null;
+        String codeCacheFile = null;
+        long codeBudget = 0;
+        ResultSink.Format format = ResultSink.Format.TEXT;
+        for (String arg : args) {
+            if (arg.startsWith("--tier=")) {
+                vm.tier = Tier.valueOf(arg.substring(7).toUpperCase());
+            } else if (arg.startsWith("--jit-threshold=")) {
+                vm.jitThreshold = Integer.parseInt(arg.substring(16));
+            } else if (arg.startsWith("--osr-threshold=")) {
+                vm.osrThreshold = Integer.parseInt(arg.substring(16));
+            } else if (arg.startsWith("--max-instructions=")) {
+                vm.instructionLimit = Long.parseLong(arg.substring(19));
+            } else if (arg.startsWith("--timeout=")) {
+                vm.timeoutMillis = (long) (Double.parseDouble(arg.substring(10)) * 1000);
+            } else if (arg.startsWith("--gc-threshold=")) {
+                vm.gcThreshold = Integer.parseInt(arg.substring(15));
+            } else if (arg.startsWith("--jobs=")) {
+                jobs = Integer.parseInt(arg.substring(7));
+                if (jobs <= 0) jobs = Runtime.getRuntime().availableProcessors();
+            } else if (arg.startsWith("--base=")) {
+                baseFiles = Arrays.asList(arg.substring(7).split(","));
+            } else if (arg.startsWith("--code-budget=")) {
+                codeBudget = (long) (Double.parseDouble(arg.substring(14)) * 1024 * 1024);
+            } else if (arg.equals("--code-cache")) {
+                codeCacheFile = "";
+            } else if (arg.startsWith("--code-cache=")) {
+                codeCacheFile = arg.substring(13);
+            } else if (arg.startsWith("--cache=")) {
+                cacheDir = arg.substring(8);
+            } else if (arg.equals("--keep-classes")) {
+                vm.keepClasses = true;
+            } else if (arg.startsWith("--format=")) {
+                format = ResultSink.Format.valueOf(arg.substring(9).toUpperCase());
+            } else if (arg.equals("--stats")) {
+                printStats = true;
+            } else if (arg.startsWith("--") || root != null) {
+                usage();
+            } else {
+                root = arg;
+            }
+        }
+        if (root == null) usage();
+        if (vm.keepClasses && jobs > 1) {
+            // Which classes a worker already has would depend on scheduling
+            System.err.println("--keep-classes can't be used with --jobs");
+            System.exit(2);
+        }
+        if (cacheDir != null && (vm.keepClasses || baseFiles != null)) {
+            // Results would depend on the classes run before
+            System.err.println("--cache can't be used with --keep-classes or --base");
+            System.exit(2);
+        }
+        vm.classPath = new ClassPath(new File(root));
+        vm.classPath.store.budget = codeBudget;
+        if (codeCacheFile != null) {
+            try {
+                // Next to the root, so writing it doesn't change the root (and invalidate the index)
+                File dir = new File(root).getCanonicalFile();
+                File file = codeCacheFile.isEmpty() ? new File(dir.getParentFile(), dir.getName() + ".quickvm") : new File(codeCacheFile);
+                vm.classPath.codeCache = new CodeCache(file, dir);
+            } catch (IOException ex) {
+                System.err.println("Can't use code cache: " + ex);
+                System.exit(2);
+            }
+        }
+        if (cacheDir != null) {
+            try {
+                vm.results = new ResultCache(new File(cacheDir), vm.classPath, format);
+            } catch (IOException ex) {
+                System.err.println("Can't use result cache: " + ex);
+                System.exit(2);
+            }
+        }
+        ResultSink.Async sink = new ResultSink.Async(format, new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16),
+                System.err, 4096);
+        vm.sink = sink;
+        vm.err = new PrintStream(sink.errors(), true);
+        if (baseFiles != null) {
+            Snapshot base = vm.initializeBase(baseFiles);
+            vm.err.printf("Base: %d classes, %d objects.\n", base.initializedClasses.size(), base.size());
+        }
         
+        BatchRunner batch = jobs > 1 ? new BatchRunner(vm, jobs) : null;
         int total = 0, failed = 0;
         while (true) {
             String file;
@@ -256,31 +816,37 @@ public class QuickVM {
             } catch (NoSuchElementException ex) {
                 break;
             }
-            System.err.println("Trying file: " + file);
             total++;
-
-            try {
-                if (!file.endsWith(".smali")) throw new IllegalArgumentException("Expected smali file path");
-                vm.initializeType(file.substring(0, file.length() - 6));
-                while (vm.stack.size() > 0) vm.step();
-            } catch (Exception ex) {
-                if (VERBOSE) {
-                    System.err.println();
-                    Logger.getLogger(QuickVM.class.getName()).log(Level.SEVERE, null, ex);
-                    System.err.println("VM state:");
-                    vm.dumpState();
-                }
-                System.err.println("File failed: " + file);
+            if (batch != null) {
+                batch.submit(file);
+            } else if (!vm.runClass(file)) {
                 failed++;
             }
+        }
+        Stats stats = vm.stats;
+        if (batch != null) {
+            failed = batch.finish();
+            stats = batch.stats();
+        }
+        try {
+            sink.close();
+        } catch (IOException ex) {
+            System.err.println("Can't write results: " + ex);
+        }
+        
+        if (vm.classPath.codeCache != null) {
             try {
-                vm.reset();
+                vm.classPath.codeCache.save(vm.classPath);
             } catch (IOException ex) {
-                Logger.getLogger(QuickVM.class.getName()).log(Level.SEVERE, null, ex);
+                System.err.println("Can't save code cache: " + ex);
             }
         }
         
         System.err.printf("Finished: %d classes from %d failed to load (%.2f%%).\n", failed, total, (failed / (float) total) * 100);
+        if (printStats) {
+            System.err.println(stats);
+            System.err.println(vm.classPath.store);
+        }
         System.err.println("Sanity tests you could perform:\n - Check for type cast warnings on stderr.\n - Check for \\u00 escapes on the constants.\n - Manually verify failed classes.\n - Check for string constants outside static constructors.");
     }
     
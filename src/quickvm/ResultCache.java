@@ -0,0 +1,141 @@
+package quickvm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Output of classes from previous runs, on disk. Entries are found by the
+ * name and smali of the class, and hold the hashes of every class its
+ * static constructor referenced, or that it was absent: an entry is only
+ * valid while they're all unchanged, and absent ones still are. Only classes that finished are stored, and entries don't
+ * track changes to the VM itself (delete the directory after changing
+ * native methods). Safe to share between VMs running on different threads.
+ */
+public class ResultCache {
+
+    /** Format of the entries. Bump when it, or what the VM prints, changes. */
+    static final int VERSION = 2;
+
+    /** Cached output of a class. */
+    static class Result {
+        byte[] out, err;
+    }
+
+    final File dir;
+
+    final ClassPath classPath;
+
+    /** Format the output is encoded in. Entries of other formats aren't found. */
+    final ResultSink.Format format;
+
+    /** Smali hashes, by class name. */
+    private final ConcurrentMap<String, String> hashes = new ConcurrentHashMap<>();
+
+    public ResultCache(File dir, ClassPath classPath, ResultSink.Format format) throws IOException {
+        Files.createDirectories(dir.toPath());
+        this.dir = dir;
+        this.classPath = classPath;
+        this.format = format;
+    }
+
+    /** Output of the class from a previous run, or null if there's none or it's stale. */
+    public Result lookup(String className) throws IOException {
+        File file = entryFile(className);
+        if (!file.isFile()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != VERSION) return null;
+            int used = in.readInt();
+            for (int i = 0; i < used; i++) {
+                String name = in.readUTF(), hash = in.readUTF();
+                if (!state(name).equals(hash)) return null;
+            }
+            Result result = new Result();
+            result.out = readBytes(in);
+            result.err = readBytes(in);
+            return result;
+        } catch (EOFException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Store the output of a class that finished.
+     * @param used classes its static constructor referenced, the class itself
+     * included, whether they're in the class path or not
+     */
+    public void store(String className, Collection<String> used, byte[] out, byte[] err) throws IOException {
+        File tmp = File.createTempFile("entry", ".tmp", dir);
+        try (DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            data.writeInt(VERSION);
+            data.writeInt(used.size());
+            for (String name : used) {
+                data.writeUTF(name);
+                data.writeUTF(state(name));
+            }
+            data.writeInt(out.length);
+            data.write(out);
+            data.writeInt(err.length);
+            data.write(err);
+        }
+        // Readers on other threads or processes see the old entry or the new one, never half of it
+        Files.move(tmp.toPath(), entryFile(className).toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private File entryFile(String className) throws IOException {
+        byte[] key = (className + "\n" + format + "\n" + hash(className)).getBytes(StandardCharsets.UTF_8);
+        return new File(dir, sha1(ByteBuffer.wrap(key)));
+    }
+
+    /** Hash of the smali of a class, or "" if it's not in the class path. */
+    private String state(String className) throws IOException {
+        return classPath.exists(className) ? hash(className) : "";
+    }
+
+    /** Hash of the smali of a class in the class path. */
+    private String hash(String className) throws IOException {
+        String hash = hashes.get(className);
+        if (hash == null) {
+            ByteBuffer source = classPath.getClass(className).source.duplicate();
+            source.rewind();
+            hash = sha1(source);
+            hashes.putIfAbsent(className, hash);
+        }
+        return hash;
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static String sha1(ByteBuffer data) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        md.update(data);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : md.digest()) sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+
+}
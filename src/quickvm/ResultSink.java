@@ -0,0 +1,325 @@
+package quickvm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import quickvm.util.StringUtil;
+
+/**
+ * Where the VM writes the static field stores it runs, as records of
+ * (class, field, type, value). They're encoded in one of the formats:
+ * <ul>
+ * <li>text: "Lfoo/Bar;->z:I = 5" lines, as printed since the beginning;</li>
+ * <li>jsonl: a JSON object per line, with "class", "field", "type" and
+ * either "value" (an int, a string or null) or "object" (the rendering
+ * of any other object);</li>
+ * <li>binary: per record, a kind byte (0 int, 1 null, 2 string, 3 other
+ * object), the class, field and type, then the value: a big-endian int,
+ * nothing, or a string. Strings are an unsigned LEB128 byte count and
+ * their UTF-8 bytes.</li>
+ * </ul>
+ * Output already encoded in the same format (i.e. of a class run on
+ * another thread, or cached) can be written in between records.
+ */
+public abstract class ResultSink {
+
+    enum Format {
+        TEXT, JSONL, BINARY
+    }
+
+    /** A static field store. */
+    static class Record {
+        final FieldRef field;
+
+        /** Value stored in a primitive field. */
+        final int value;
+
+        /**
+         * For reference fields, the string stored, or the rendering of the
+         * object stored if not a string. Null for null.
+         */
+        final String object;
+
+        final boolean isString;
+
+        Record(FieldRef field, int value, String object, boolean isString) {
+            this.field = field;
+            this.value = value;
+            this.object = object;
+            this.isString = isString;
+        }
+
+        boolean isReference() {
+            char c = field.type.charAt(0);
+            return c == 'L' || c == '[';
+        }
+    }
+
+    final Format format;
+
+    ResultSink(Format format) {
+        this.format = format;
+    }
+
+    /** Write a static field store. */
+    abstract void add(Record record);
+
+    /** Write output already encoded in the format of this sink. */
+    abstract void addEncoded(byte[] bytes);
+
+    /** Encodes records on the calling thread. */
+    static class Stream extends ResultSink {
+        private final OutputStream out;
+        private final DataOutputStream data;
+        private final StringBuilder sb = new StringBuilder();
+
+        /** Charset of text records: the one System.out prints with. */
+        private final Charset charset = Charset.defaultCharset();
+
+        Stream(Format format, OutputStream out) {
+            super(format);
+            this.out = out;
+            this.data = new DataOutputStream(out);
+        }
+
+        @Override
+        void add(Record record) {
+            try {
+                write(record);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        @Override
+        void addEncoded(byte[] bytes) {
+            try {
+                out.write(bytes);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+
+        void write(Record record) throws IOException {
+            String name = record.field.name;
+            int arrow = name.indexOf("->"), colon = name.indexOf(':', arrow);
+            switch (format) {
+                case TEXT:
+                    sb.setLength(0);
+                    sb.append(name).append(" = ");
+                    if (!record.isReference()) sb.append(record.value);
+                    else if (record.object == null) sb.append("null");
+                    else sb.append(record.isString ? StringUtil.escapeString(record.object) : record.object);
+                    sb.append('\n');
+                    out.write(sb.toString().getBytes(charset));
+                    break;
+                case JSONL:
+                    sb.setLength(0);
+                    // Smali names and escaped strings are valid JSON strings
+                    sb.append("{\"class\":").append(StringUtil.escapeString(name.substring(0, arrow)));
+                    sb.append(",\"field\":").append(StringUtil.escapeString(name.substring(arrow + 2, colon)));
+                    sb.append(",\"type\":").append(StringUtil.escapeString(record.field.type));
+                    if (!record.isReference()) sb.append(",\"value\":").append(record.value);
+                    else if (record.object == null) sb.append(",\"value\":null");
+                    else sb.append(record.isString ? ",\"value\":" : ",\"object\":").append(StringUtil.escapeString(record.object));
+                    sb.append("}\n");
+                    out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+                    break;
+                case BINARY:
+                    int kind = !record.isReference() ? 0 : record.object == null ? 1 : record.isString ? 2 : 3;
+                    data.write(kind);
+                    writeString(name.substring(0, arrow));
+                    writeString(name.substring(arrow + 2, colon));
+                    writeString(record.field.type);
+                    if (kind == 0) data.writeInt(record.value);
+                    else if (kind > 1) writeString(record.object);
+                    break;
+            }
+        }
+
+        private void writeString(String str) throws IOException {
+            byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+            int length = bytes.length;
+            while (length > 0x7F) {
+                data.write(length & 0x7F | 0x80);
+                length >>>= 7;
+            }
+            data.write(length);
+            data.write(bytes);
+        }
+    }
+
+    /**
+     * Encodes and writes records on a thread of its own, so the VM doesn't
+     * wait for the output. The queue is bounded: if the output can't keep
+     * up, adding blocks until there's room.
+     *
+     * Diagnostics go through the same queue (see {@link #errors}), so when
+     * both streams end up in the same log, records still follow the
+     * messages of the class that wrote them.
+     */
+    static class Async extends ResultSink {
+        /** Queued after the last record. */
+        private static final Object END = new Object();
+
+        /** Diagnostics, to be written to the error stream. */
+        private static class ErrorChunk {
+            final byte[] bytes;
+
+            ErrorChunk(byte[] bytes) {
+                this.bytes = bytes;
+            }
+        }
+
+        private final BlockingQueue<Object> queue;
+        private final Stream stream;
+        private final OutputStream err;
+        private final Thread writer;
+
+        /** Diagnostics written since the last flush. */
+        private final ByteArrayOutputStream pendingErrors = new ByteArrayOutputStream();
+
+        private final OutputStream errors = new OutputStream() {
+            @Override
+            public void write(int b) {
+                pendingErrors.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                pendingErrors.write(b, off, len);
+            }
+
+            @Override
+            public void flush() {
+                if (pendingErrors.size() == 0) return;
+                put(new ErrorChunk(pendingErrors.toByteArray()));
+                pendingErrors.reset();
+            }
+        };
+
+        /** First error writing, thrown on close. */
+        private volatile IOException error;
+
+        /**
+         * @param out stream to write to, buffered if needed
+         * @param err stream to write diagnostics to
+         * @param capacity number of records and chunks that can be queued
+         */
+        Async(Format format, OutputStream out, OutputStream err, int capacity) {
+            super(format);
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.stream = new Stream(format, out);
+            this.err = err;
+            this.writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            }, "quickvm-results");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        @Override
+        void add(Record record) {
+            put(record);
+        }
+
+        @Override
+        void addEncoded(byte[] bytes) {
+            if (bytes.length > 0) put(bytes);
+        }
+
+        /**
+         * Stream for diagnostics, written in order with the records when
+         * flushed. Not thread safe: wrap it in a PrintStream that flushes.
+         */
+        OutputStream errors() {
+            return errors;
+        }
+
+        /** Write everything added so far, and stop the writer. */
+        void close() throws IOException {
+            errors.flush();
+            put(END);
+            try {
+                writer.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(ex);
+            }
+            if (error != null) throw error;
+        }
+
+        private void put(Object item) {
+            try {
+                queue.put(item);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        private void drain() {
+            List<Object> batch = new ArrayList<>();
+            while (true) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                queue.drainTo(batch);
+                for (Object item : batch) {
+                    if (item == END) {
+                        flush();
+                        return;
+                    }
+                    if (item instanceof ErrorChunk) {
+                        // Records before it go out first
+                        flush();
+                        try {
+                            err.write(((ErrorChunk) item).bytes);
+                            err.flush();
+                        } catch (IOException ex) {
+                            if (error == null) error = ex;
+                        }
+                        continue;
+                    }
+                    // After an error, keep taking records so the VM doesn't block
+                    if (error != null) continue;
+                    try {
+                        if (item instanceof Record) stream.write((Record) item);
+                        else stream.out.write((byte[]) item);
+                    } catch (IOException ex) {
+                        error = ex;
+                    }
+                }
+                batch.clear();
+                // Nothing else waiting: let the output catch up
+                if (queue.isEmpty()) flush();
+            }
+        }
+
+        private void flush() {
+            if (error != null) return;
+            try {
+                stream.flush();
+            } catch (IOException ex) {
+                error = ex;
+            }
+        }
+    }
+
+}
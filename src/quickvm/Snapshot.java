@@ -0,0 +1,68 @@
+package quickvm;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Frozen state of a VM after some base classes were initialized: heap,
+ * static fields, string pool and initialized classes. VMs fork from it
+ * cheaply, copying each base object only when they first get its handle
+ * (objects are changed in place, so a copy can't wait for the first
+ * write). The snapshot is never changed, so VMs on different threads can
+ * fork from the same one.
+ */
+public class Snapshot {
+
+    /** Base objects by handle, null for free handles. */
+    final VMObject[] objects;
+
+    final int[][] statics;
+    final Map<String, Integer> staticFields;
+    final Map<String, Integer> strings;
+    final Set<String> initializedClasses;
+
+    /**
+     * Take over the state of the VM, which must be idle (no frames).
+     * The VM's objects belong to the snapshot afterwards: reset it
+     * before running anything else on it.
+     */
+    Snapshot(QuickVM vm) {
+        if (!vm.stack.isEmpty()) throw new IllegalStateException("VM is running");
+        vm.collectGarbage();
+        this.objects = vm.heap.objects();
+        this.statics = new int[vm.statics.length][];
+        for (int i = 0; i < statics.length; i++)
+            if (vm.statics[i] != null) statics[i] = vm.statics[i].clone();
+        this.staticFields = Collections.unmodifiableMap(new HashMap<>(vm.staticFields));
+        this.strings = Collections.unmodifiableMap(new HashMap<>(vm.strings));
+        this.initializedClasses = Collections.unmodifiableSet(new HashSet<>(vm.initializedClasses));
+    }
+
+    /** Number of objects in the snapshot. */
+    public int size() {
+        int size = 0;
+        for (VMObject obj : objects)
+            if (obj != null) size++;
+        return size;
+    }
+
+    /** Put the VM, just reset, at the state of the snapshot. */
+    void restore(QuickVM vm) {
+        vm.heap.fork(vm, this);
+        if (vm.statics.length < statics.length) vm.statics = new int[statics.length][];
+        for (int i = 0; i < statics.length; i++)
+            if (statics[i] != null) vm.statics[i] = statics[i].clone();
+        vm.staticFields.putAll(staticFields);
+        vm.strings.putAll(strings);
+        vm.initializedClasses.addAll(initializedClasses);
+    }
+
+    @Override
+    public String toString() {
+        return "Snapshot{" + initializedClasses.size() + " classes, " + size() + " objects}";
+    }
+
+}
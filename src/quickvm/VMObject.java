@@ -1,9 +1,10 @@
 package quickvm;
 
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import quickvm.util.HandleMap;
+import quickvm.util.IntList;
 import quickvm.util.StringUtil;
 
 /**
@@ -14,21 +15,67 @@ public interface VMObject {
     public String getType();
     
     /**
-     * "Real" VM object, aka with field registers.
+     * Copy of this object for the given VM, that can be changed without
+     * affecting the original. Used to fork from a {@link Snapshot}.
+     */
+    public VMObject copyFor(QuickVM vm);
+    
+    /**
+     * "Real" VM object, aka with field registers. Fields in the layout of
+     * its class are kept in slots, any other field by name.
      */
     public static class VirtualObject implements VMObject {
         public final QuickVM vm;
         public final String type;
-        Map<String, Integer> fields = new HashMap<>();
 
-        public VirtualObject(QuickVM vm, String type) {
+        /** Class of the object, null if it's not in the class path. */
+        final ClassDef cls;
+
+        /** Fields in the class layout, by slot. */
+        final int[] slots;
+
+        /** Fields not in the class layout, null until one is set. */
+        Map<String, Integer> fields;
+
+        /**
+         * @param cls class of the object, laid out, or null if not in the class path
+         */
+        public VirtualObject(QuickVM vm, String type, ClassDef cls) {
             this.vm = vm;
             this.type = type;
+            this.cls = cls;
+            this.slots = new int[cls != null ? cls.instanceFields.length : 0];
+        }
+
+        public int get(FieldRef field) {
+            if (field.isIn(cls)) return slots[field.slot];
+            Integer value = fields != null ? fields.get(field.name) : null;
+            return value != null ? value : 0;
+        }
+
+        public void put(FieldRef field, int value) {
+            if (field.isIn(cls)) {
+                slots[field.slot] = value;
+                return;
+            }
+            if (fields == null) fields = new HashMap<>();
+            fields.put(field.name, value);
         }
 
         @Override
         public String toString() {
-            return type + "{" + "fields=" + fields + '}';
+            Map<String, Integer> all = new LinkedHashMap<>();
+            for (int i = 0; i < slots.length; i++) all.put(cls.instanceFields[i], slots[i]);
+            if (fields != null) all.putAll(fields);
+            return type + "{" + "fields=" + all + '}';
+        }
+
+        @Override
+        public VMObject copyFor(QuickVM vm) {
+            VirtualObject copy = new VirtualObject(vm, type, cls);
+            System.arraycopy(slots, 0, copy.slots, 0, slots.length);
+            if (fields != null) copy.fields = new HashMap<>(fields);
+            return copy;
         }
 
         @Override
@@ -52,6 +99,11 @@ public interface VMObject {
             return StringUtil.escapeString(value);
         }
 
+        @Override
+        public VMObject copyFor(QuickVM vm) {
+            return new StringObject(value);
+        }
+
         @Override
         public String getType() {
             return "Ljava/lang/String;";
@@ -69,6 +121,13 @@ public interface VMObject {
             return "StringBuilder{ " + StringUtil.escapeString(value.toString()) + " }";
         }
 
+        @Override
+        public VMObject copyFor(QuickVM vm) {
+            StringBuilderObject copy = new StringBuilderObject();
+            copy.value.append(value);
+            return copy;
+        }
+
         @Override
         public String getType() {
             return "Ljava/lang/StringBuilder;";
@@ -80,7 +139,7 @@ public interface VMObject {
      */
     public class ArrayListObject implements VMObject {
         public final QuickVM vm;
-        public ArrayList<Integer> value;
+        public IntList value;
 
         public ArrayListObject(QuickVM vm) {
             this.vm = vm;
@@ -102,15 +161,22 @@ public interface VMObject {
         public String getType() {
             return "Ljava/util/ArrayList;";
         }
+
+        @Override
+        public VMObject copyFor(QuickVM vm) {
+            ArrayListObject copy = new ArrayListObject(vm);
+            if (value != null) copy.value = value.copy();
+            return copy;
+        }
     }
 
     /**
      * HashMap objects are allocated natively for speed and simplicity.
-     * TODO: use hashcode
+     * Keys are compared like the VM would (see {@link Heap#same}).
      */
     public class HashMapObject implements VMObject {
         public final QuickVM vm;
-        public HashMap<Integer, Integer> value;
+        public HandleMap value;
 
         public HashMapObject(QuickVM vm) {
             this.vm = vm;
@@ -120,13 +186,11 @@ public interface VMObject {
         public String toString() {
             StringBuilder sb = new StringBuilder();
             sb.append("HashMap{ ");
-            boolean emitted = false;
-            for (Integer key : value.keySet()) {
-                if (emitted) sb.append(", ");
-                emitted = true;
-                sb.append(vm.heap.get(key));
+            for (int i = 0; i < value.size(); i++) {
+                if (i > 0) sb.append(", ");
+                sb.append(vm.heap.get(value.keyAt(i)));
                 sb.append("=");
-                sb.append(vm.heap.get(value.get(key)));
+                sb.append(vm.heap.get(value.valueAt(i)));
             }
             sb.append(" }");
             return sb.toString();
@@ -136,15 +200,22 @@ public interface VMObject {
         public String getType() {
             return "Ljava/util/HashMap;";
         }
+
+        @Override
+        public VMObject copyFor(QuickVM vm) {
+            HashMapObject copy = new HashMapObject(vm);
+            if (value != null) copy.value = value.copy(vm.heap);
+            return copy;
+        }
     }
 
     /**
      * HashSet objects are allocated natively for speed and simplicity.
-     * TODO: use hashcode
+     * Elements are compared like the VM would (see {@link Heap#same}).
      */
     public class HashSetObject implements VMObject {
         public final QuickVM vm;
-        public HashSet<Integer> value;
+        public HandleMap value;
 
         public HashSetObject(QuickVM vm) {
             this.vm = vm;
@@ -154,11 +225,9 @@ public interface VMObject {
         public String toString() {
             StringBuilder sb = new StringBuilder();
             sb.append("HashSet{ ");
-            boolean emitted = false;
-            for (Integer key : value) {
-                if (emitted) sb.append(", ");
-                emitted = true;
-                sb.append(vm.heap.get(key));
+            for (int i = 0; i < value.size(); i++) {
+                if (i > 0) sb.append(", ");
+                sb.append(vm.heap.get(value.keyAt(i)));
             }
             sb.append(" }");
             return sb.toString();
@@ -168,34 +237,90 @@ public interface VMObject {
         public String getType() {
             return "Ljava/util/HashSet;";
         }
+
+        @Override
+        public VMObject copyFor(QuickVM vm) {
+            HashSetObject copy = new HashSetObject(vm);
+            if (value != null) copy.value = value.copy(vm.heap);
+            return copy;
+        }
     }
     
     /**
-     * Array objects are allocated natively, of course.
+     * Array objects are allocated natively, of course. Elements are kept
+     * in a Java array of the element type (references as handles, booleans
+     * as bytes, floats and doubles as their bits), see {@link #create}.
      */
-    public class ArrayObject implements VMObject {
+    public abstract class ArrayObject implements VMObject {
         public final QuickVM vm;
         public final String type;
-        public final int[] value;
         
-        public ArrayObject(QuickVM vm, String type, int[] value) {
+        protected ArrayObject(QuickVM vm, String type) {
             this.vm = vm;
             this.type = type;
-            this.value = value;
+        }
+        
+        public abstract int length();
+        
+        /** Element as a register value (extended like aget would). */
+        public abstract int get(int index);
+        
+        /** Set element from a register value (truncated like aput would). */
+        public abstract void set(int index, int value);
+        
+        /** Copy the elements of a fill-array-data payload (int[] or long[]). */
+        public abstract void fill(Object data);
+        
+        /** Shallow copy, as Object.clone() would make. */
+        public ArrayObject copy() {
+            return copyFor(vm);
+        }
+        
+        @Override
+        public abstract ArrayObject copyFor(QuickVM vm);
+        
+        /** New zero-filled array of the given type. */
+        public static ArrayObject create(QuickVM vm, String type, int length) {
+            switch (type.charAt(1)) {
+                case 'Z':
+                case 'B':
+                    return new ByteArrayObject(vm, type, new byte[length]);
+                case 'C':
+                    return new CharArrayObject(vm, type, new char[length]);
+                case 'S':
+                    return new ShortArrayObject(vm, type, new short[length]);
+                case 'I':
+                case 'F':
+                    return new IntArrayObject(vm, type, new int[length]);
+                case 'J':
+                case 'D':
+                    return new LongArrayObject(vm, type, new long[length]);
+                case 'L':
+                case '[':
+                    return new RefArrayObject(vm, type, new int[length]);
+                default:
+                    throw new IllegalArgumentException("Invalid array type: " + type);
+            }
+        }
+        
+        /** New array of the given type, with register values as elements. */
+        public static ArrayObject of(QuickVM vm, String type, int[] values) {
+            ArrayObject array = create(vm, type, values.length);
+            for (int i = 0; i < values.length; i++) array.set(i, values[i]);
+            return array;
+        }
+        
+        protected void appendElement(StringBuilder sb, int index) {
+            sb.append(get(index));
         }
         
         @Override
         public String toString() {
             StringBuilder sb = new StringBuilder();
             sb.append("[ ");
-            for (int i = 0; i < value.length; i++) {
+            for (int i = 0; i < length(); i++) {
                 if (i > 0) sb.append(", ");
-                int val = value[i];
-                if (type.charAt(1) == 'L' || type.charAt(1) == '[') {
-                    sb.append(vm.heap.get(val));
-                } else {
-                    sb.append(val);
-                }
+                appendElement(sb, i);
             }
             sb.append(" ]");
             return sb.toString();
@@ -208,4 +333,241 @@ public interface VMObject {
         
     }
     
+    /**
+     * Array of booleans or bytes.
+     */
+    public class ByteArrayObject extends ArrayObject {
+        public final byte[] value;
+        
+        public ByteArrayObject(QuickVM vm, String type, byte[] value) {
+            super(vm, type);
+            this.value = value;
+        }
+        
+        @Override
+        public int length() {
+            return value.length;
+        }
+        
+        @Override
+        public int get(int index) {
+            return value[index];
+        }
+        
+        @Override
+        public void set(int index, int value) {
+            this.value[index] = (byte) value;
+        }
+        
+        @Override
+        public void fill(Object data) {
+            int[] elements = (int[]) data;
+            for (int i = 0; i < elements.length; i++) value[i] = (byte) elements[i];
+        }
+        
+        @Override
+        public ArrayObject copyFor(QuickVM vm) {
+            return new ByteArrayObject(vm, type, value.clone());
+        }
+    }
+    
+    /**
+     * Array of chars.
+     */
+    public class CharArrayObject extends ArrayObject {
+        public final char[] value;
+        
+        public CharArrayObject(QuickVM vm, String type, char[] value) {
+            super(vm, type);
+            this.value = value;
+        }
+        
+        @Override
+        public int length() {
+            return value.length;
+        }
+        
+        @Override
+        public int get(int index) {
+            return value[index];
+        }
+        
+        @Override
+        public void set(int index, int value) {
+            this.value[index] = (char) value;
+        }
+        
+        @Override
+        public void fill(Object data) {
+            int[] elements = (int[]) data;
+            for (int i = 0; i < elements.length; i++) value[i] = (char) elements[i];
+        }
+        
+        @Override
+        public ArrayObject copyFor(QuickVM vm) {
+            return new CharArrayObject(vm, type, value.clone());
+        }
+    }
+    
+    /**
+     * Array of shorts.
+     */
+    public class ShortArrayObject extends ArrayObject {
+        public final short[] value;
+        
+        public ShortArrayObject(QuickVM vm, String type, short[] value) {
+            super(vm, type);
+            this.value = value;
+        }
+        
+        @Override
+        public int length() {
+            return value.length;
+        }
+        
+        @Override
+        public int get(int index) {
+            return value[index];
+        }
+        
+        @Override
+        public void set(int index, int value) {
+            this.value[index] = (short) value;
+        }
+        
+        @Override
+        public void fill(Object data) {
+            int[] elements = (int[]) data;
+            for (int i = 0; i < elements.length; i++) value[i] = (short) elements[i];
+        }
+        
+        @Override
+        public ArrayObject copyFor(QuickVM vm) {
+            return new ShortArrayObject(vm, type, value.clone());
+        }
+    }
+    
+    /**
+     * Array of ints or floats.
+     */
+    public class IntArrayObject extends ArrayObject {
+        public final int[] value;
+        
+        public IntArrayObject(QuickVM vm, String type, int[] value) {
+            super(vm, type);
+            this.value = value;
+        }
+        
+        @Override
+        public int length() {
+            return value.length;
+        }
+        
+        @Override
+        public int get(int index) {
+            return value[index];
+        }
+        
+        @Override
+        public void set(int index, int value) {
+            this.value[index] = value;
+        }
+        
+        @Override
+        public void fill(Object data) {
+            int[] elements = (int[]) data;
+            System.arraycopy(elements, 0, value, 0, elements.length);
+        }
+        
+        @Override
+        public ArrayObject copyFor(QuickVM vm) {
+            return new IntArrayObject(vm, type, value.clone());
+        }
+    }
+    
+    /**
+     * Array of longs or doubles.
+     */
+    public class LongArrayObject extends ArrayObject {
+        public final long[] value;
+        
+        public LongArrayObject(QuickVM vm, String type, long[] value) {
+            super(vm, type);
+            this.value = value;
+        }
+        
+        @Override
+        public int length() {
+            return value.length;
+        }
+        
+        @Override
+        public int get(int index) {
+            throw new IllegalArgumentException("Not a 32-bit array: " + type);
+        }
+        
+        @Override
+        public void set(int index, int value) {
+            throw new IllegalArgumentException("Not a 32-bit array: " + type);
+        }
+        
+        @Override
+        public void fill(Object data) {
+            long[] elements = (long[]) data;
+            System.arraycopy(elements, 0, value, 0, elements.length);
+        }
+        
+        @Override
+        public ArrayObject copyFor(QuickVM vm) {
+            return new LongArrayObject(vm, type, value.clone());
+        }
+        
+        @Override
+        protected void appendElement(StringBuilder sb, int index) {
+            sb.append(value[index]);
+        }
+    }
+    
+    /**
+     * Array of references, kept as handles.
+     */
+    public class RefArrayObject extends ArrayObject {
+        public final int[] value;
+        
+        public RefArrayObject(QuickVM vm, String type, int[] value) {
+            super(vm, type);
+            this.value = value;
+        }
+        
+        @Override
+        public int length() {
+            return value.length;
+        }
+        
+        @Override
+        public int get(int index) {
+            return value[index];
+        }
+        
+        @Override
+        public void set(int index, int value) {
+            this.value[index] = value;
+        }
+        
+        @Override
+        public void fill(Object data) {
+            throw new IllegalArgumentException("Can't fill array of references: " + type);
+        }
+        
+        @Override
+        public ArrayObject copyFor(QuickVM vm) {
+            return new RefArrayObject(vm, type, value.clone());
+        }
+        
+        @Override
+        protected void appendElement(StringBuilder sb, int index) {
+            sb.append(vm.heap.get(value[index]));
+        }
+    }
+    
 }
@@ -0,0 +1,341 @@
+package quickvm.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bare minimum JVM class file writer, just enough to emit a class with
+ * static fields and a few methods. Classes are emitted as version 49,
+ * so no stack map frames are needed (the verifier infers types).
+ */
+public class ClassWriter {
+
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_STATIC = 0x0008;
+    public static final int ACC_FINAL = 0x0010;
+    public static final int ACC_SUPER = 0x0020;
+
+    private static final int CLASS_VERSION = 49;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final String name;
+    private final String superName;
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<byte[]> methods = new ArrayList<>();
+
+    /**
+     * @param name internal name of the class (i.e. "foo/Bar")
+     * @param superName internal name of the superclass
+     */
+    public ClassWriter(String name, String superName) {
+        this.name = name;
+        this.superName = superName;
+    }
+
+    public String className() {
+        return name;
+    }
+
+    /* Constant pool */
+
+    private int constant(String key, int tag, int... refs) {
+        Integer idx = poolIndex.get(key);
+        if (idx != null) return idx;
+        try {
+            pool.writeByte(tag);
+            for (int ref : refs) pool.writeShort(ref);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+
+    public int utf8(String value) {
+        Integer idx = poolIndex.get("U" + value);
+        if (idx != null) return idx;
+        try {
+            pool.writeByte(1);
+            pool.writeUTF(value);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        poolIndex.put("U" + value, poolCount);
+        return poolCount++;
+    }
+
+    public int integer(int value) {
+        Integer idx = poolIndex.get("I" + value);
+        if (idx != null) return idx;
+        try {
+            pool.writeByte(3);
+            pool.writeInt(value);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        poolIndex.put("I" + value, poolCount);
+        return poolCount++;
+    }
+
+    public int classRef(String internalName) {
+        return constant("C" + internalName, 7, utf8(internalName));
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        return constant("N" + name + ":" + descriptor, 12, utf8(name), utf8(descriptor));
+    }
+
+    public int fieldRef(String owner, String name, String descriptor) {
+        return constant("F" + owner + "." + name + ":" + descriptor, 9, classRef(owner), nameAndType(name, descriptor));
+    }
+
+    public int methodRef(String owner, String name, String descriptor) {
+        return constant("M" + owner + "." + name + descriptor, 10, classRef(owner), nameAndType(name, descriptor));
+    }
+
+    public int interfaceMethodRef(String owner, String name, String descriptor) {
+        return constant("IM" + owner + "." + name + descriptor, 11, classRef(owner), nameAndType(name, descriptor));
+    }
+
+    /* Members */
+
+    public void addField(int access, String name, String descriptor) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(0);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        fields.add(bytes.toByteArray());
+    }
+
+    public void addMethod(int access, String name, String descriptor, Code code) {
+        byte[] body = code.toByteArray();
+        if (body.length > 0xFFFF) throw new IllegalArgumentException("Method too big");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1);
+            out.writeShort(utf8("Code"));
+            out.writeInt(2 + 2 + 4 + body.length + 2 + 8 * code.handlers.size() + 2);
+            out.writeShort(code.maxStack);
+            out.writeShort(code.maxLocals);
+            out.writeInt(body.length);
+            out.write(body);
+            out.writeShort(code.handlers.size());
+            for (Label[] handler : code.handlers) {
+                for (Label label : handler) {
+                    if (label.position < 0) throw new IllegalStateException("Label not placed");
+                    out.writeShort(label.position);
+                }
+                out.writeShort(0); // any exception
+            }
+            out.writeShort(0); // attributes
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        methods.add(bytes.toByteArray());
+    }
+
+    public byte[] toByteArray() {
+        int thisIdx = classRef(name), superIdx = classRef(superName);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(CLASS_VERSION);
+            out.writeShort(poolCount);
+            pool.flush();
+            out.write(poolBytes.toByteArray());
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisIdx);
+            out.writeShort(superIdx);
+            out.writeShort(0); // interfaces
+            out.writeShort(fields.size());
+            for (byte[] field : fields) out.write(field);
+            out.writeShort(methods.size());
+            for (byte[] method : methods) out.write(method);
+            out.writeShort(0); // attributes
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Branch target inside a {@link Code}, resolved when placed.
+     */
+    public static class Label {
+        int position = -1;
+        final List<int[]> fixups = new ArrayList<>();
+    }
+
+    /**
+     * Bytecode of a method. Only the handful of instructions that the
+     * compiler needs are given helpers; anything else goes through {@link #op}.
+     */
+    public static class Code {
+
+        public static final int ICONST_M1 = 0x02, ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11,
+                LDC = 0x12, LDC_W = 0x13, ILOAD = 0x15, ALOAD = 0x19, ISTORE = 0x36,
+                IALOAD = 0x2e, AALOAD = 0x32, IASTORE = 0x4f, POP = 0x57, DUP = 0x59, SWAP = 0x5f,
+                IADD = 0x60, ISUB = 0x64, IMUL = 0x68, IDIV = 0x6c, IREM = 0x70, INEG = 0x74,
+                ISHL = 0x78, ISHR = 0x7a, IUSHR = 0x7c, IAND = 0x7e, IOR = 0x80, IXOR = 0x82,
+                I2B = 0x91, I2C = 0x92, I2S = 0x93,
+                IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c, IFGT = 0x9d, IFLE = 0x9e,
+                IF_ICMPEQ = 0x9f, IF_ICMPNE = 0xa0, IF_ICMPLT = 0xa1, IF_ICMPGE = 0xa2,
+                IF_ICMPGT = 0xa3, IF_ICMPLE = 0xa4, GOTO = 0xa7,
+                TABLESWITCH = 0xaa, LOOKUPSWITCH = 0xab, IRETURN = 0xac, RETURN = 0xb1,
+                GETSTATIC = 0xb2, PUTSTATIC = 0xb3, GETFIELD = 0xb4, PUTFIELD = 0xb5,
+                INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8,
+                INVOKEINTERFACE = 0xb9, NEWARRAY = 0xbc, ATHROW = 0xbf, WIDE = 0xc4;
+
+        public static final int T_INT = 10;
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final List<Label> labels = new ArrayList<>();
+        final List<Label[]> handlers = new ArrayList<>();
+        int maxStack, maxLocals;
+
+        public Code(int maxStack, int maxLocals) {
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+        }
+
+        public int position() {
+            return bytes.size();
+        }
+
+        public Code op(int opcode) {
+            bytes.write(opcode);
+            return this;
+        }
+
+        public Code u1(int value) {
+            bytes.write(value);
+            return this;
+        }
+
+        public Code u2(int value) {
+            bytes.write(value >> 8);
+            bytes.write(value);
+            return this;
+        }
+
+        public Code u4(int value) {
+            u2(value >>> 16);
+            return u2(value & 0xFFFF);
+        }
+
+        /** Push an int constant, with the shortest instruction possible. */
+        public Code iconst(ClassWriter cw, int value) {
+            if (value >= -1 && value <= 5) return op(ICONST_0 + value);
+            if (value == (byte) value) return op(BIPUSH).u1(value);
+            if (value == (short) value) return op(SIPUSH).u2(value);
+            int idx = cw.integer(value);
+            if (idx < 0x100) return op(LDC).u1(idx);
+            return op(LDC_W).u2(idx);
+        }
+
+        /** Load, store or similar instruction taking a local variable index. */
+        public Code local(int opcode, int index) {
+            if (index < 0x100) return op(opcode).u1(index);
+            return op(WIDE).op(opcode).u2(index);
+        }
+
+        public Code place(Label label) {
+            label.position = position();
+            return this;
+        }
+
+        /** Catch anything thrown from start (inclusive) to end (exclusive) at handler. */
+        public Code handler(Label start, Label end, Label handler) {
+            handlers.add(new Label[] { start, end, handler });
+            return this;
+        }
+
+        /** Branch instruction with a 16-bit offset. */
+        public Code jump(int opcode, Label label) {
+            int at = position();
+            op(opcode);
+            fixup(label, at, 2);
+            return u2(0);
+        }
+
+        public Code tableswitch(int low, Label dflt, Label[] targets) {
+            int at = position();
+            op(TABLESWITCH);
+            while (position() % 4 != 0) u1(0);
+            fixup(dflt, at, 4);
+            u4(0);
+            u4(low);
+            u4(low + targets.length - 1);
+            for (Label target : targets) {
+                fixup(target, at, 4);
+                u4(0);
+            }
+            return this;
+        }
+
+        /** @param keys sorted keys */
+        public Code lookupswitch(int[] keys, Label dflt, Label[] targets) {
+            int at = position();
+            op(LOOKUPSWITCH);
+            while (position() % 4 != 0) u1(0);
+            fixup(dflt, at, 4);
+            u4(0);
+            u4(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                u4(keys[i]);
+                fixup(targets[i], at, 4);
+                u4(0);
+            }
+            return this;
+        }
+
+        private void fixup(Label label, int instruction, int size) {
+            if (!labels.contains(label)) labels.add(label);
+            label.fixups.add(new int[] { instruction, position(), size });
+        }
+
+        byte[] toByteArray() {
+            byte[] code = bytes.toByteArray();
+            for (Label label : labels) {
+                if (label.position < 0) throw new IllegalStateException("Label not placed");
+                for (int[] fixup : label.fixups) {
+                    int offset = label.position - fixup[0], at = fixup[1];
+                    if (fixup[2] == 2) {
+                        if (offset != (short) offset) throw new IllegalArgumentException("Branch too far");
+                        code[at] = (byte) (offset >> 8);
+                        code[at+1] = (byte) offset;
+                    } else {
+                        code[at] = (byte) (offset >> 24);
+                        code[at+1] = (byte) (offset >> 16);
+                        code[at+2] = (byte) (offset >> 8);
+                        code[at+3] = (byte) offset;
+                    }
+                }
+            }
+            return code;
+        }
+
+    }
+
+}
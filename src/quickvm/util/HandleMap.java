@@ -0,0 +1,138 @@
+package quickvm.util;
+
+import java.util.Arrays;
+
+/**
+ * Hash map from handles to ints, without boxing. Keys are hashed and
+ * compared by a {@link Hasher}, so equal objects with different handles
+ * are the same key. Entries are kept in insertion order, in dense arrays,
+ * and found through an open addressing (linear probing) index.
+ * Without values it works as a set.
+ */
+public class HandleMap {
+
+    /** Hash and equality of the objects behind handles. */
+    public interface Hasher {
+        int hash(int handle);
+        boolean same(int a, int b);
+    }
+
+    private final Hasher hasher;
+
+    private int[] keys;
+    private int[] values;
+    private int[] hashes;
+    private int size;
+
+    /** Entry index + 1 by hash slot, 0 if free. Length is a power of two. */
+    private int[] index;
+
+    /**
+     * @param values whether to keep values, false for a set
+     */
+    public HandleMap(Hasher hasher, boolean values) {
+        this.hasher = hasher;
+        this.keys = new int[8];
+        this.values = values ? new int[8] : null;
+        this.hashes = new int[8];
+        this.index = new int[16];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int keyAt(int entry) {
+        return keys[entry];
+    }
+
+    public int valueAt(int entry) {
+        return values[entry];
+    }
+
+    /** Entry index of the key, or -1. */
+    public int find(int key) {
+        int hash = mix(hasher.hash(key));
+        int mask = index.length - 1;
+        for (int i = hash & mask; index[i] != 0; i = (i + 1) & mask) {
+            int entry = index[i] - 1;
+            if (hashes[entry] == hash && (keys[entry] == key || hasher.same(keys[entry], key))) return entry;
+        }
+        return -1;
+    }
+
+    public boolean contains(int key) {
+        return find(key) >= 0;
+    }
+
+    /** Value of the key, or 0 (null) if missing. */
+    public int get(int key) {
+        int entry = find(key);
+        return entry >= 0 ? values[entry] : 0;
+    }
+
+    /** Set the value of the key. Returns the previous value, or 0 (null). */
+    public int put(int key, int value) {
+        int entry = find(key);
+        if (entry >= 0) {
+            int previous = values[entry];
+            values[entry] = value;
+            return previous;
+        }
+        entry = insert(key);
+        values[entry] = value;
+        return 0;
+    }
+
+    /** Add the key if missing. Returns whether it was added. */
+    public boolean add(int key) {
+        if (find(key) >= 0) return false;
+        insert(key);
+        return true;
+    }
+
+    /** Copy of the map, hashing keys with the given hasher (which must agree with this one's). */
+    public HandleMap copy(Hasher hasher) {
+        HandleMap copy = new HandleMap(hasher, values != null);
+        copy.keys = keys.clone();
+        copy.values = values != null ? values.clone() : null;
+        copy.hashes = hashes.clone();
+        copy.index = index.clone();
+        copy.size = size;
+        return copy;
+    }
+
+    private int insert(int key) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+            if (values != null) values = Arrays.copyOf(values, size * 2);
+        }
+        // Keep the index at most half full
+        if (size * 2 >= index.length) rehash(index.length * 2);
+        int entry = size++;
+        keys[entry] = key;
+        hashes[entry] = mix(hasher.hash(key));
+        place(entry);
+        return entry;
+    }
+
+    private void rehash(int capacity) {
+        index = new int[capacity];
+        for (int entry = 0; entry < size; entry++) place(entry);
+    }
+
+    private void place(int entry) {
+        int mask = index.length - 1;
+        int i = hashes[entry] & mask;
+        while (index[i] != 0) i = (i + 1) & mask;
+        index[i] = entry + 1;
+    }
+
+    /** Spread the bits of the hash, so handles in sequence don't cluster. */
+    private static int mix(int hash) {
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+
+}
@@ -0,0 +1,156 @@
+package quickvm.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Splits smali source into tokens, working directly on a byte buffer.
+ * Tokens are just offsets into the buffer; strings are only built when
+ * asked for with {@link #text()}.
+ */
+public class SmaliLexer {
+
+    public static final int EOF = 0;
+    public static final int NEWLINE = 1;
+    /** Anything else: opcodes, directives, registers, labels, literals, references... */
+    public static final int WORD = 2;
+    /** String literal, quotes included. */
+    public static final int STRING = 3;
+    public static final int COMMA = 4;
+    public static final int LBRACE = 5;
+    public static final int RBRACE = 6;
+
+    /** Files bigger than this get memory mapped instead of read. */
+    private static final int MAP_THRESHOLD = 0x10000;
+
+    private final ByteBuffer buf;
+    private final int limit;
+    private int pos;
+
+    private int type = NEWLINE, start, end;
+
+    public SmaliLexer(ByteBuffer buf) {
+        this(buf, 0, buf.limit());
+    }
+
+    /** Lex only the region between {@code from} and {@code to}. */
+    public SmaliLexer(ByteBuffer buf, int from, int to) {
+        this.buf = buf;
+        this.pos = from;
+        this.limit = to;
+    }
+
+    /** Load a whole file into a buffer, mapping it if it's big. */
+    public static ByteBuffer load(File file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("File too big: " + file);
+            if (size > MAP_THRESHOLD)
+                return ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            ByteBuffer buf = ByteBuffer.allocate((int) size);
+            while (buf.hasRemaining() && ch.read(buf) >= 0);
+            buf.flip();
+            return buf;
+        }
+    }
+
+    /** Advance to the next token and return its type. */
+    public int next() {
+        while (pos < limit) {
+            byte c = buf.get(pos);
+            if (c == '\n') break;
+            if (c == '#') {
+                while (pos < limit && buf.get(pos) != '\n') pos++;
+                break;
+            }
+            if (c != ' ' && c != '\t' && c != '\r') break;
+            pos++;
+        }
+
+        start = pos;
+        if (pos >= limit) return finish(EOF);
+        byte c = buf.get(pos++);
+        switch (c) {
+            case '\n': return finish(NEWLINE);
+            case ',': return finish(COMMA);
+            case '{': return finish(LBRACE);
+            case '}': return finish(RBRACE);
+            case '"':
+                while (pos < limit) {
+                    c = buf.get(pos++);
+                    if (c == '\\') pos++;
+                    else if (c == '"') break;
+                }
+                return finish(STRING);
+        }
+        while (pos < limit) {
+            c = buf.get(pos);
+            if (c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == ','
+                    || c == '{' || c == '}' || c == '#' || c == '"') break;
+            pos++;
+        }
+        return finish(WORD);
+    }
+
+    private int finish(int type) {
+        this.type = type;
+        this.end = Math.min(pos, limit);
+        return type;
+    }
+
+    /** Skip the rest of the current line, stopping right before its newline. */
+    public void skipLine() {
+        if (type == NEWLINE || type == EOF) return;
+        while (pos < limit && buf.get(pos) != '\n') pos++;
+    }
+
+    public int type() {
+        return type;
+    }
+
+    /** Start offset of the current token. */
+    public int start() {
+        return start;
+    }
+
+    /** End offset (exclusive) of the current token. */
+    public int end() {
+        return end;
+    }
+
+    /** Offset of the next character to lex. */
+    public int position() {
+        return pos;
+    }
+
+    /** First character of the current token. */
+    public char first() {
+        return (char) (buf.get(start) & 0xFF);
+    }
+
+    /** Whether the current token is exactly the given (ASCII) string. */
+    public boolean is(String str) {
+        if (end - start != str.length()) return false;
+        for (int i = 0; i < str.length(); i++)
+            if (buf.get(start + i) != str.charAt(i)) return false;
+        return true;
+    }
+
+    /** The current token, as a string. */
+    public String text() {
+        return text(start, end);
+    }
+
+    /** Arbitrary region of the buffer, as a string. */
+    public String text(int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = buf.get(from + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,99 @@
+package quickvm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CodeStoreTest {
+
+    private static final String CALLEE =
+            ".class public Lt/Callee;\n"
+            + ".super Ljava/lang/Object;\n"
+            + ".method public static a(I)I\n"
+            + "    .locals 1\n"
+            + "    add-int/lit8 v0, p0, 0x1\n"
+            + "    return-object v0\n"
+            + ".end method\n"
+            + ".method public static b(I)I\n"
+            + "    .locals 1\n"
+            + "    xor-int/lit8 v0, p0, 0x3\n"
+            + "    return-object v0\n"
+            + ".end method\n";
+
+    /** Calls a and b in turn from the same call sites, three times. */
+    private static final String CALLER =
+            ".class public Lt/Caller;\n"
+            + ".super Ljava/lang/Object;\n"
+            + ".field public static r:I\n"
+            + ".method static constructor <clinit>()V\n"
+            + "    .locals 3\n"
+            + "    const/4 v0, 0x0\n"
+            + "    const/4 v1, 0x0\n"
+            + "    const/4 v2, 0x3\n"
+            + "    :loop\n"
+            + "    if-ge v1, v2, :done\n"
+            + "    invoke-static {v0}, Lt/Callee;->a(I)I\n"
+            + "    move-result v0\n"
+            + "    invoke-static {v0}, Lt/Callee;->b(I)I\n"
+            + "    move-result v0\n"
+            + "    add-int/lit8 v1, v1, 0x1\n"
+            + "    goto :loop\n"
+            + "    :done\n"
+            + "    sput v0, Lt/Caller;->r:I\n"
+            + "    return-void\n"
+            + ".end method\n";
+
+    private File root;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("quickvm").toFile();
+        new File(root, "t").mkdir();
+        Files.write(new File(root, "t/Callee.smali").toPath(), CALLEE.getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(root, "t/Caller.smali").toPath(), CALLER.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @After
+    public void tearDown() {
+        new File(root, "t/Callee.smali").delete();
+        new File(root, "t/Caller.smali").delete();
+        new File(root, "t").delete();
+        root.delete();
+    }
+
+    private String run(QuickVM vm) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        vm.sink = new ResultSink.Stream(ResultSink.Format.TEXT, out);
+        vm.err = new PrintStream(new ByteArrayOutputStream());
+        assertTrue(vm.runClass("t/Caller.smali"));
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void evictedMethodsAreResolvedAgain() {
+        QuickVM vm = new QuickVM(new ClassPath(root));
+        // Room for a single body: each call evicts the other method
+        vm.classPath.store.budget = 1;
+        assertEquals("Lt/Caller;->r:I = 2\n", run(vm));
+        // The static constructor once, then both methods on every call
+        assertEquals(7, vm.classPath.store.misses);
+        assertTrue(vm.classPath.store.evictions >= 6);
+    }
+
+    @Test
+    public void bodiesAreDecodedOnceWithinBudget() {
+        QuickVM vm = new QuickVM(new ClassPath(root));
+        assertEquals("Lt/Caller;->r:I = 2\n", run(vm));
+        assertEquals(3, vm.classPath.store.misses);
+        assertEquals(0, vm.classPath.store.evictions);
+    }
+
+}